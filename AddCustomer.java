@@ -106,17 +106,7 @@ public class AddCustomer extends JFrame {
                 return;
             }
 
-            Connection conn = DBConnection.getConnection();
-            String sql = "INSERT INTO customers (name, email, phone, address) VALUES (?, ?, ?, ?)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, name);
-            stmt.setString(2, email.isEmpty() ? null : email);
-            stmt.setString(3, phone);
-            stmt.setString(4, address);
-
-            stmt.executeUpdate();
-            stmt.close();
-            conn.close();
+            Repositories.customers().create(new Customer(0, name, email.isEmpty() ? null : email, phone, address));
 
             JOptionPane.showMessageDialog(this, "Customer added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
 
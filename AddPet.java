@@ -78,19 +78,7 @@ public class AddPet extends JFrame {
                 return;
             }
 
-            Connection conn = DBConnection.getConnection();
-            String sql = "INSERT INTO pets (name, species, breed, age, price, quantity) VALUES (?, ?, ?, ?, ?, ?)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, name);
-            stmt.setString(2, species);
-            stmt.setString(3, breed);
-            stmt.setInt(4, age);
-            stmt.setDouble(5, price);
-            stmt.setInt(6, quantity);
-
-            stmt.executeUpdate();
-            stmt.close();
-            conn.close();
+            Repositories.pets().create(new Pet(0, name, species, breed, age, price, quantity));
 
             JOptionPane.showMessageDialog(this, "Pet added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
 
@@ -0,0 +1,186 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of the REST handlers.
+ *
+ * Each request is classified (checkout, write, read, report) and must get a slot from that class's
+ * limiter before its handler runs. A limiter allows `limit` requests in flight, parks up to
+ * `maxQueue` more for at most `maxWaitMillis`, and rejects the rest immediately with
+ * 503 + Retry-After instead of letting them pile up behind a slow database.
+ *
+ * Limits adapt to observed latency (a gradient limiter): when requests take longer than the recent
+ * best latency the limit shrinks proportionally, and when latency is back at the baseline it grows by
+ * roughly sqrt(limit). Checkout has its own limiter with a deeper queue and longer wait, so a flood of
+ * list or report requests is shed before it can delay a sale.
+ */
+public class AdmissionController {
+    public enum RouteClass { CHECKOUT, WRITE, READ, REPORT }
+
+    private final Map<RouteClass, Limiter> limiters = new EnumMap<>(RouteClass.class);
+    // requests turned away before admission because no handler thread was free
+    private final AtomicLong shed = new AtomicLong();
+
+    public AdmissionController() {
+        //                                          initial, min, max, queue, wait ms
+        limiters.put(RouteClass.CHECKOUT, new Limiter(16, 4, 64, 64, 2000));
+        limiters.put(RouteClass.WRITE, new Limiter(8, 2, 32, 16, 1000));
+        limiters.put(RouteClass.READ, new Limiter(16, 2, 64, 16, 250));
+        limiters.put(RouteClass.REPORT, new Limiter(4, 1, 16, 4, 250));
+    }
+
+    public static RouteClass classify(String method, String path) {
+        boolean sales = path.startsWith("/api/sales");
+        // chain queries fan out to every store
+        if ("GET".equalsIgnoreCase(method)) return sales || path.startsWith("/api/chain") ? RouteClass.REPORT : RouteClass.READ;
+        // placing and confirming holds is the first half of a checkout
+        if ((sales || path.startsWith("/api/holds")) && "POST".equalsIgnoreCase(method)) return RouteClass.CHECKOUT;
+        return RouteClass.WRITE;
+    }
+
+    /** Most requests all limiters together can have in flight or parked at once. */
+    public int capacity() {
+        int n = 0;
+        for (Limiter l : limiters.values()) n += l.maxLimit + l.maxQueue;
+        return n;
+    }
+
+    /** Answers 503 without admission, for a request the server has no thread to run. */
+    public void shed(HttpExchange ex) throws IOException {
+        shed.incrementAndGet();
+        reject(ex);
+    }
+
+    /** Wraps a handler so every request (except CORS preflight) passes through admission first. */
+    public HttpHandler wrap(HttpHandler handler) {
+        return ex -> {
+            if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
+                handler.handle(ex);
+                return;
+            }
+            Limiter limiter = limiters.get(classify(ex.getRequestMethod(), ex.getRequestURI().getPath()));
+            if (!limiter.acquire()) {
+                reject(ex);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                handler.handle(ex);
+            } finally {
+                limiter.release(System.nanoTime() - start);
+            }
+        };
+    }
+
+    private static void reject(HttpExchange ex) throws IOException {
+        byte[] body = "{\"error\": \"Server busy, retry later\"}".getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        ex.getResponseHeaders().add("Retry-After", "1");
+        ex.sendResponseHeaders(503, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /** JSON snapshot of every limiter, for the admin endpoint. */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<RouteClass, Limiter> e : limiters.entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(e.getKey().name().toLowerCase()).append("\":").append(e.getValue().snapshot());
+        }
+        return sb.append(",\"shed\":").append(shed.get()).append('}').toString();
+    }
+
+    static class Limiter {
+        private final int minLimit, maxLimit, maxQueue;
+        private final long maxWaitMillis;
+
+        private double limit;
+        private int inFlight, waiting;
+        private long admitted, rejected;
+        // latency baseline: best smoothed sample of the current window, re-measured every WINDOW samples
+        private static final int WINDOW = 500;
+        private double smoothedRtt, minRtt = Double.MAX_VALUE, windowMinRtt = Double.MAX_VALUE;
+        private int samples;
+
+        Limiter(int initial, int minLimit, int maxLimit, int maxQueue, long maxWaitMillis) {
+            this.limit = initial;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.maxQueue = maxQueue;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        synchronized boolean acquire() {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                admitted++;
+                return true;
+            }
+            if (waiting >= maxQueue) {
+                rejected++;
+                return false;
+            }
+            waiting++;
+            try {
+                long deadline = System.nanoTime() + maxWaitMillis * 1_000_000L;
+                while (inFlight >= (int) limit) {
+                    long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+                    if (remaining <= 0) {
+                        rejected++;
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                inFlight++;
+                admitted++;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            } finally {
+                waiting--;
+            }
+        }
+
+        synchronized void release(long rttNanos) {
+            inFlight--;
+            adapt(rttNanos);
+            notifyAll();
+        }
+
+        private void adapt(long rttNanos) {
+            double rtt = rttNanos;
+            smoothedRtt = smoothedRtt == 0 ? rtt : smoothedRtt * 0.9 + rtt * 0.1;
+            windowMinRtt = Math.min(windowMinRtt, smoothedRtt);
+            minRtt = Math.min(minRtt, windowMinRtt);
+            if (++samples >= WINDOW) {
+                // let the baseline drift up if the database got permanently slower
+                minRtt = windowMinRtt;
+                windowMinRtt = Double.MAX_VALUE;
+                samples = 0;
+            }
+            // tolerate 2x the baseline before shrinking; never shrink by more than half at once
+            double gradient = Math.max(0.5, Math.min(1.0, 2.0 * minRtt / smoothedRtt));
+            // only probe upwards when the limit is actually being used
+            double headroom = inFlight + 1 >= limit / 2 ? Math.sqrt(limit) : 0;
+            double newLimit = limit * gradient + headroom;
+            limit = Math.max(minLimit, Math.min(maxLimit, limit * 0.8 + newLimit * 0.2));
+        }
+
+        synchronized String snapshot() {
+            return String.format("{\"limit\":%d,\"in_flight\":%d,\"waiting\":%d,\"admitted\":%d,\"rejected\":%d,\"rtt_ms\":%.2f}",
+                    (int) limit, inFlight, waiting, admitted, rejected, smoothedRtt / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process copy of the full pet and customer lists behind GET /api/pets and /api/customers.
+ *
+ * Writes made through MainServer invalidate the affected list; writes that bypass the server
+ * (the Swing screens, other tools) are picked up when an entry is older than the TTL
+ * (PETSHOP_CACHE_TTL_SECONDS, default 30). A generation counter stops a load that raced with an
+ * invalidation from installing stale rows.
+ *
+ * At shutdown both lists are read once more and written to a snapshot file together with the tables'
+ * checksums; at startup the file is memory-mapped and restored only if the checksums still match the
+ * database. Checksums (CHECKSUM TABLE, a full scan under MySQL) are only taken for the snapshot, never
+ * on a cache miss.
+ */
+public class CatalogCache {
+    private static final int MAGIC = 0x50534331; // "PSC1"
+
+    private static class Entry<T> {
+        final List<T> rows;
+        final long loadedAt;
+
+        Entry(List<T> rows, long loadedAt) {
+            this.rows = rows;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final long ttlNanos;
+    private final AtomicLong petGeneration = new AtomicLong();
+    private final AtomicLong customerGeneration = new AtomicLong();
+    private volatile Entry<Pet> pets;
+    private volatile Entry<Customer> customers;
+
+    public CatalogCache(long ttlSeconds) {
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+    }
+
+    private boolean fresh(Entry<?> e) {
+        return e != null && System.nanoTime() - e.loadedAt < ttlNanos;
+    }
+
+    /** All pets, newest first. */
+    public List<Pet> pets() throws SQLException {
+        Entry<Pet> e = pets;
+        if (fresh(e)) return e.rows;
+        long gen = petGeneration.get();
+        List<Pet> rows = Collections.unmodifiableList(Repositories.pets().findAll());
+        if (petGeneration.get() == gen) pets = new Entry<>(rows, System.nanoTime());
+        return rows;
+    }
+
+    /** All customers, newest first. */
+    public List<Customer> customers() throws SQLException {
+        Entry<Customer> e = customers;
+        if (fresh(e)) return e.rows;
+        long gen = customerGeneration.get();
+        List<Customer> rows = Collections.unmodifiableList(Repositories.customers().findAll());
+        if (customerGeneration.get() == gen) customers = new Entry<>(rows, System.nanoTime());
+        return rows;
+    }
+
+    public void invalidatePets() {
+        petGeneration.incrementAndGet();
+        pets = null;
+    }
+
+    public void invalidateCustomers() {
+        customerGeneration.incrementAndGet();
+        customers = null;
+    }
+
+    // ---------- snapshot ----------
+
+    /**
+     * Writes both lists of the current store to `file` through a memory-mapped buffer. The rows are
+     * read after the checksums: if a write lands in between, the restore sees a mismatch, not stale rows.
+     */
+    public void writeSnapshot(Path file) throws IOException, SQLException {
+        long petChecksum = Repositories.pets().checksum();
+        long customerChecksum = Repositories.customers().checksum();
+        List<Pet> petRows = Repositories.pets().findAll();
+        List<Customer> customerRows = Repositories.customers().findAll();
+        List<byte[]> strings = new ArrayList<>();
+        long size = 4 + 8 + 8 + 4 + 4;
+        for (Pet pet : petRows) {
+            size += 4 + 4 + 8 + 4;
+            size += encoded(strings, pet.name) + encoded(strings, pet.species) + encoded(strings, pet.breed);
+        }
+        for (Customer cu : customerRows) {
+            size += 4;
+            size += encoded(strings, cu.name) + encoded(strings, cu.email) + encoded(strings, cu.phone) + encoded(strings, cu.address);
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int s = 0;
+            buf.putInt(MAGIC).putLong(petChecksum).putLong(customerChecksum);
+            buf.putInt(petRows.size()).putInt(customerRows.size());
+            for (Pet pet : petRows) {
+                buf.putInt(pet.id);
+                putString(buf, strings.get(s++));
+                putString(buf, strings.get(s++));
+                putString(buf, strings.get(s++));
+                buf.putInt(pet.age).putDouble(pet.price).putInt(pet.quantity);
+            }
+            for (Customer cu : customerRows) {
+                buf.putInt(cu.id);
+                putString(buf, strings.get(s++));
+                putString(buf, strings.get(s++));
+                putString(buf, strings.get(s++));
+                putString(buf, strings.get(s++));
+            }
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the lists from `file` when its checksums match the current tables.
+     * Returns the number of rows restored, or -1 when the snapshot is missing, corrupt or stale.
+     */
+    public int restoreSnapshot(Path file) throws SQLException {
+        if (!Files.isRegularFile(file)) return -1;
+        long petChecksum = Repositories.pets().checksum();
+        long customerChecksum = Repositories.customers().checksum();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC) return -1;
+            if (buf.getLong() != petChecksum || buf.getLong() != customerChecksum) return -1;
+            int petCount = buf.getInt();
+            int customerCount = buf.getInt();
+            List<Pet> petRows = new ArrayList<>(petCount);
+            for (int i = 0; i < petCount; i++) {
+                int id = buf.getInt();
+                String name = getString(buf), species = getString(buf), breed = getString(buf);
+                petRows.add(new Pet(id, name, species, breed, buf.getInt(), buf.getDouble(), buf.getInt()));
+            }
+            List<Customer> customerRows = new ArrayList<>(customerCount);
+            for (int i = 0; i < customerCount; i++) {
+                customerRows.add(new Customer(buf.getInt(), getString(buf), getString(buf), getString(buf), getString(buf)));
+            }
+            long now = System.nanoTime();
+            pets = new Entry<>(Collections.unmodifiableList(petRows), now);
+            customers = new Entry<>(Collections.unmodifiableList(customerRows), now);
+            return petCount + customerCount;
+        } catch (IOException | RuntimeException e) {
+            // unreadable or truncated snapshot: start cold
+            System.err.println("Ignoring catalog snapshot " + file + ": " + e);
+            return -1;
+        }
+    }
+
+    // Strings are stored as int length + UTF-8 bytes; length -1 is null
+    private static int encoded(List<byte[]> out, String s) {
+        byte[] b = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+        out.add(b);
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void putString(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(b.length).put(b);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
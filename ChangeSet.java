@@ -0,0 +1,26 @@
+import java.util.List;
+
+/**
+ * Rows of one table changed after a client's change version, for delta sync (`?since=`).
+ *
+ * Every create, update and delete of a pet or customer stamps the row (or, for a delete, a
+ * tombstone) with the table's next change version. A client keeps the highest `version` it has
+ * seen and asks for what changed after it. When `full` is set, the server no longer knows that
+ * version (its history was reset) and `changed` holds every row: the client must replace its copy.
+ */
+public class ChangeSet<T> {
+    /** The table's change version when the rows were read; pass it as the next `since`. */
+    public final long version;
+    public final boolean full;
+    /** Created or updated rows, oldest change first. */
+    public final List<T> changed;
+    /** Ids of rows deleted after `since`. */
+    public final List<Integer> deleted;
+
+    public ChangeSet(long version, boolean full, List<T> changed, List<Integer> deleted) {
+        this.version = version;
+        this.full = full;
+        this.changed = changed;
+        this.deleted = deleted;
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the JSON and CBOR list encodings on synthetic data: encoded size, encode time and
+ * decode time (MiniJson into maps for JSON, {@link ShopCbor} straight into value objects for CBOR).
+ * Then times sequential against chunked parallel JSON list encoding ({@link ShopJson#arrayUtf8}) for
+ * growing list sizes, to pick PETSHOP_JSON_PARALLEL_ROWS.
+ *
+ * Usage: java CodecBenchmark [rows] [iterations]   (defaults 5000 rows, 50 iterations)
+ */
+public class CodecBenchmark {
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        List<Pet> pets = new ArrayList<>(rows);
+        List<Customer> customers = new ArrayList<>(rows);
+        List<Sale> sales = new ArrayList<>(rows);
+        String[] species = {"Dog", "Cat", "Parrot", "Rabbit", "Hamster"};
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        for (int i = 1; i <= rows; i++) {
+            String sp = species[i % species.length];
+            pets.add(new Pet(i, "Pet " + i, sp, "Breed " + (i % 40), i % 15, 25 + (i % 400) + 0.99, i % 30));
+            customers.add(new Customer(i, "Customer " + i, "customer" + i + "@example.com", "555-01" + (i % 100),
+                    i + " Main Street"));
+            sales.add(new Sale(i, i, i, 1 + i % 3, 49.95 * (1 + i % 3), new Timestamp(now - i * 60_000L),
+                    "Pet " + i, sp, "Breed " + (i % 40), "Customer " + i, "555-01" + (i % 100)));
+        }
+
+        System.out.printf("%-10s %-5s %12s %12s %12s%n", "list", "codec", "bytes", "encode ms", "decode ms");
+        run("pets", "json", iterations, () -> ShopJson.pets(pets, FieldSet.ALL_PETS).getBytes(StandardCharsets.UTF_8),
+                CodecBenchmark::decodeJson);
+        run("pets", "cbor", iterations, () -> ShopCbor.pets(pets, FieldSet.ALL_PETS), ShopCbor::decodePets);
+        run("customers", "json", iterations,
+                () -> ShopJson.customers(customers, FieldSet.ALL_CUSTOMERS).getBytes(StandardCharsets.UTF_8),
+                CodecBenchmark::decodeJson);
+        run("customers", "cbor", iterations, () -> ShopCbor.customers(customers, FieldSet.ALL_CUSTOMERS),
+                ShopCbor::decodeCustomers);
+        run("sales", "json", iterations, () -> ShopJson.sales(sales, FieldSet.ALL_SALES).getBytes(StandardCharsets.UTF_8),
+                CodecBenchmark::decodeJson);
+        run("sales", "cbor", iterations, () -> ShopCbor.sales(sales, FieldSet.ALL_SALES), ShopCbor::decodeSales);
+
+        System.out.printf("%nJSON sales list encoding, %d CPUs (parallel from %d rows)%n",
+                Runtime.getRuntime().availableProcessors(), ShopJson.PARALLEL_ROWS);
+        System.out.printf("%10s %14s %14s %8s%n", "rows", "sequential ms", "parallel ms", "speedup");
+        for (int n = 500; n <= sales.size(); n *= 2) {
+            List<Sale> list = sales.subList(0, n);
+            ShopJson.RowWriter<Sale> w = (sb, s) -> ShopJson.sale(sb, s, FieldSet.ALL_SALES);
+            // fewer rounds for big lists, so every size takes about as long
+            int rounds = Math.max(5, iterations * 4000 / n);
+            double seq = time(rounds, () -> ShopJson.arrayUtf8(list, 160, w, false));
+            double par = time(rounds, () -> ShopJson.arrayUtf8(list, 160, w, true));
+            System.out.printf("%10d %14.3f %14.3f %7.2fx%n", n, seq, par, seq / par);
+        }
+    }
+
+    // Mean ms per encode, after a warm-up
+    private static double time(int rounds, Encoder encoder) {
+        for (int i = 0; i < Math.max(5, rounds / 5); i++) sink = encoder.encode();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < rounds; i++) sink = encoder.encode();
+        return (System.nanoTime() - t0) / 1e6 / rounds;
+    }
+
+    private interface Encoder {
+        byte[] encode();
+    }
+
+    private interface Decoder {
+        Object decode(byte[] data);
+    }
+
+    private static Object decodeJson(byte[] data) {
+        List<?> rows = (List<?>) MiniJson.parse(new String(data, StandardCharsets.UTF_8));
+        int fields = 0;
+        for (Object row : rows) fields += ((Map<?, ?>) row).size();
+        return fields;
+    }
+
+    private static void run(String list, String codec, int iterations, Encoder encoder, Decoder decoder) {
+        byte[] data = encoder.encode();
+        // warm up both paths before timing
+        for (int i = 0; i < Math.max(5, iterations / 5); i++) {
+            sink = encoder.encode();
+            sink = decoder.decode(data);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = encoder.encode();
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = decoder.decode(data);
+        long t2 = System.nanoTime();
+        System.out.printf("%-10s %-5s %12d %12.3f %12.3f%n", list, codec, data.length,
+                (t1 - t0) / 1e6 / iterations, (t2 - t1) / 1e6 / iterations);
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * A row of the `customers` table.
+ */
+public class Customer {
+    public final int id;
+    public final String name;
+    public final String email;
+    public final String phone;
+    public final String address;
+
+    public Customer(int id, String name, String email, String phone, String address) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.phone = phone;
+        this.address = address;
+    }
+}
@@ -0,0 +1,40 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage operations for customers. Implementations: {@link JdbcRepositories} and {@link InMemoryShop}.
+ */
+public interface CustomerRepository {
+    /** All customers, newest first. Fields outside the projection may be left null / zero. */
+    List<Customer> findAll(FieldSet fields) throws SQLException;
+
+    default List<Customer> findAll() throws SQLException {
+        return findAll(FieldSet.ALL_CUSTOMERS);
+    }
+
+    /** The customer with the given id, or null. */
+    Customer findById(int id, FieldSet fields) throws SQLException;
+
+    default Customer findById(int id) throws SQLException {
+        return findById(id, FieldSet.ALL_CUSTOMERS);
+    }
+
+    /** Inserts the customer (its id is ignored) and returns the generated id. */
+    int create(Customer customer) throws SQLException;
+
+    /**
+     * Applies a partial update. Keys are column names (name, email, phone, address).
+     * Returns false when no customer has the given id.
+     */
+    boolean update(int id, Map<String, Object> fields) throws SQLException;
+
+    /** Returns false when no customer has the given id; otherwise leaves a tombstone for delta sync. */
+    boolean delete(int id) throws SQLException;
+
+    /** Customers created or updated, and ids deleted, after change version `since` (0 for everything). */
+    ChangeSet<Customer> changesSince(long since, FieldSet fields) throws SQLException;
+
+    /** A value that changes whenever any customer row changes; used to validate cached copies. */
+    long checksum() throws SQLException;
+}
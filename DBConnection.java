@@ -1,6 +1,16 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Database connection helper.
@@ -9,9 +19,18 @@ import java.sql.SQLException;
  * - Reads DB URL, user, and password from environment variables (DB_URL, DB_USER, DB_PASSWORD)
  *   and falls back to sensible defaults defined below.
  * - Appends recommended JDBC parameters when not present (useSSL=false, serverTimezone=UTC,
- *   allowPublicKeyRetrieval=true).
+ *   allowPublicKeyRetrieval=true, rewriteBatchedStatements=true so JDBC batches go out in one round trip).
  * - Attempts to load the MySQL driver class for older JVMs, but continues if the driver is
  *   auto-registered (JDBC 4+).
+ * - Keeps closed connections in a small idle pool (DB_POOL_SIZE, default 10) instead of closing
+ *   them: callers still close() every connection, which returns it to the pool. Connections beyond
+ *   the pool size are really closed, so the pool never blocks a caller.
+ * - Applies the calling thread's query timeout (see {@link #setThreadQueryTimeout}) to every
+ *   statement created on a pooled connection, and times its executions ({@link SlowQueryLog}).
+ * - Serves several stores, each with its own database (shard) and pool. PETSHOP_STORES lists them
+ *   as "id=jdbcUrl,id=jdbcUrl"; an entry without "=url" uses DB_URL (enough for PETSHOP_STORE=memory).
+ *   Unset, there is one store, "main", on DB_URL. Connections go to the calling thread's store
+ *   (see {@link #useStore}), which is the first store unless set.
  */
 public class DBConnection {
     // Default values (change to match your local setup). Consider setting DB_URL/DB_USER/DB_PASSWORD
@@ -26,19 +45,179 @@ public class DBConnection {
         return (v != null && !v.isEmpty()) ? v : def;
     }
 
+    private static final int POOL_SIZE = Integer.parseInt(getenvOrDefault("DB_POOL_SIZE", "10"));
+    // Seconds; 0 = no timeout. Set once per DbExecutor worker thread.
+    private static final ThreadLocal<Integer> QUERY_TIMEOUT = ThreadLocal.withInitial(() -> 0);
+
+    /** One store's database and its idle connections. */
+    private static class Shard {
+        final String url;
+        // Idle physical connections, most recently used first
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        Shard(String url) {
+            this.url = url;
+        }
+    }
+
+    // store id -> shard, in PETSHOP_STORES order
+    private static final Map<String, Shard> SHARDS = new LinkedHashMap<>();
+
+    static {
+        String stores = getenvOrDefault("PETSHOP_STORES", "main");
+        for (String entry : stores.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int eq = entry.indexOf('=');
+            String id = eq < 0 ? entry : entry.substring(0, eq).trim();
+            SHARDS.put(id, new Shard(eq < 0 ? getenvOrDefault("DB_URL", DEFAULT_URL) : entry.substring(eq + 1).trim()));
+        }
+        if (SHARDS.isEmpty()) throw new IllegalStateException("PETSHOP_STORES lists no stores");
+    }
+
+    private static final List<String> STORES = Collections.unmodifiableList(new ArrayList<>(SHARDS.keySet()));
+    private static final ThreadLocal<String> CURRENT_STORE = ThreadLocal.withInitial(() -> STORES.get(0));
+
+    /** Sets the query timeout applied to statements created by the current thread. */
+    public static void setThreadQueryTimeout(int seconds) {
+        QUERY_TIMEOUT.set(Math.max(0, seconds));
+    }
+
+    /** Configured store ids; the first one is the default. */
+    public static List<String> stores() {
+        return STORES;
+    }
+
+    public static boolean isStore(String id) {
+        return SHARDS.containsKey(id);
+    }
+
+    /** The store the current thread's connections (and repositories) go to. */
+    public static String currentStore() {
+        return CURRENT_STORE.get();
+    }
+
+    /** Points the current thread at another store and returns the previous one, to restore afterwards. */
+    public static String useStore(String id) {
+        if (!SHARDS.containsKey(id)) throw new IllegalArgumentException("Unknown store: " + id);
+        String previous = CURRENT_STORE.get();
+        CURRENT_STORE.set(id);
+        return previous;
+    }
+
+    /** Borrows a connection to the current store from its pool (or opens one); close() hands it back. */
     public static Connection getConnection() throws SQLException {
-        String url = getenvOrDefault("DB_URL", DEFAULT_URL);
+        return getConnection(CURRENT_STORE.get());
+    }
+
+    public static Connection getConnection(String store) throws SQLException {
+        Shard shard = SHARDS.get(store);
+        if (shard == null) throw new SQLException("Unknown store: " + store);
+        return pooled(shard, borrow(shard));
+    }
+
+    private static Connection borrow(Shard shard) throws SQLException {
+        Connection physical;
+        while ((physical = shard.idle.pollFirst()) != null) {
+            shard.idleCount.decrementAndGet();
+            if (physical.isValid(1)) return physical;
+            closeQuietly(physical);
+        }
+        return openConnection(shard.url);
+    }
+
+    /**
+     * Opens connections until `count` are idle in every store's pool, so the first requests don't pay
+     * for the handshake. Returns the number idle across all stores.
+     */
+    public static int prewarm(int count) throws SQLException {
+        int target = Math.min(count, POOL_SIZE);
+        int total = 0;
+        for (Shard shard : SHARDS.values()) {
+            while (shard.idleCount.get() < target) {
+                shard.idle.addLast(openConnection(shard.url));
+                shard.idleCount.incrementAndGet();
+            }
+            total += shard.idleCount.get();
+        }
+        return total;
+    }
+
+    // Wraps a physical connection so that close() returns it to its store's pool
+    private static Connection pooled(Shard shard, Connection physical) {
+        boolean[] closed = new boolean[1];
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if ("close".equals(name)) {
+                        if (!closed[0]) {
+                            closed[0] = true;
+                            release(shard, physical);
+                        }
+                        return null;
+                    }
+                    if ("isClosed".equals(name)) return closed[0] || physical.isClosed();
+                    if (closed[0]) throw new SQLException("Connection is closed");
+                    Object result;
+                    try {
+                        result = method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    // createStatement / prepareStatement / prepareCall
+                    if (result instanceof Statement) {
+                        int timeout = QUERY_TIMEOUT.get();
+                        if (timeout > 0) ((Statement) result).setQueryTimeout(timeout);
+                        result = SlowQueryLog.wrap((Statement) result, method.getReturnType(), args);
+                    }
+                    return result;
+                });
+    }
+
+    private static void rollbackUnfinished(Connection physical) throws SQLException {
+        if (!physical.isClosed() && !physical.getAutoCommit()) {
+            physical.rollback();
+            physical.setAutoCommit(true);
+        }
+    }
+
+    private static void release(Shard shard, Connection physical) {
+        try {
+            if (physical.isClosed()) return;
+            // never hand out a connection with a half-finished transaction
+            rollbackUnfinished(physical);
+            if (shard.idleCount.incrementAndGet() <= POOL_SIZE) {
+                shard.idle.addFirst(physical);
+                return;
+            }
+            shard.idleCount.decrementAndGet();
+        } catch (SQLException e) {
+            // fall through and drop the broken connection
+        }
+        closeQuietly(physical);
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static Connection openConnection(String url) throws SQLException {
         String user = getenvOrDefault("DB_USER", DEFAULT_USER);
         String password = getenvOrDefault("DB_PASSWORD", DEFAULT_PASSWORD);
 
         // If no query string present, append recommended params. If the URL already contains
         // parameters, add missing ones only.
         if (!url.contains("?")) {
-            url = url + "?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true";
+            url = url + "?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true&rewriteBatchedStatements=true";
         } else {
             if (!url.contains("useSSL=")) url = url + "&useSSL=false";
             if (!url.contains("serverTimezone=")) url = url + "&serverTimezone=UTC";
             if (!url.contains("allowPublicKeyRetrieval=")) url = url + "&allowPublicKeyRetrieval=true";
+            if (!url.contains("rewriteBatchedStatements=")) url = url + "&rewriteBatchedStatements=true";
         }
 
         try {
@@ -0,0 +1,153 @@
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs repository work on one bounded executor (bulkhead) per workload class, so long report and
+ * list queries cannot take the threads and connections that checkout needs.
+ *
+ * A bulkhead's thread count is its connection budget: each task holds at most one connection, so a
+ * class never has more queries open than it has threads. Tasks beyond the threads wait in a bounded
+ * queue; when that is full the returned future fails with RejectedExecutionException. Every thread
+ * of a bulkhead runs with that class's query timeout, which DBConnection applies to each statement
+ * it creates (Statement.setQueryTimeout).
+ *
+ * Each store ({@link DBConnection#stores()}) has its own set of bulkheads whose threads only talk to
+ * that store's database, so a slow shard holds up its own requests but not the other stores'.
+ *
+ * Budgets can be overridden per class with PETSHOP_DB_<CLASS>_THREADS, _QUEUE and _TIMEOUT_SECONDS
+ * (e.g. PETSHOP_DB_REPORT_THREADS=2); they apply to every store.
+ */
+public class DbExecutor {
+    /** Repository work to run on a bulkhead. */
+    public interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    private static final ThreadLocal<Boolean> ON_WORKER = ThreadLocal.withInitial(() -> false);
+
+    // store id -> its bulkheads
+    private final Map<String, Map<AdmissionController.RouteClass, Bulkhead>> stores = new LinkedHashMap<>();
+
+    public DbExecutor() {
+        for (String store : DBConnection.stores()) {
+            Map<AdmissionController.RouteClass, Bulkhead> bulkheads = new EnumMap<>(AdmissionController.RouteClass.class);
+            //                                                                         threads, queue, timeout s
+            bulkheads.put(AdmissionController.RouteClass.CHECKOUT, new Bulkhead(store, "checkout", 4, 64, 5));
+            bulkheads.put(AdmissionController.RouteClass.WRITE, new Bulkhead(store, "write", 2, 32, 10));
+            bulkheads.put(AdmissionController.RouteClass.READ, new Bulkhead(store, "read", 4, 64, 10));
+            bulkheads.put(AdmissionController.RouteClass.REPORT, new Bulkhead(store, "report", 2, 16, 30));
+            stores.put(store, bulkheads);
+        }
+    }
+
+    /** Runs `call` on the current store's bulkhead of `workload`. */
+    public <T> CompletableFuture<T> submit(AdmissionController.RouteClass workload, SqlCall<T> call) {
+        return submit(DBConnection.currentStore(), workload, call);
+    }
+
+    /** Runs `call` on `store`'s bulkhead of `workload`; inside it, repositories and connections use that store. */
+    public <T> CompletableFuture<T> submit(String store, AdmissionController.RouteClass workload, SqlCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            stores.get(store).get(workload).executor.execute(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /** True on a bulkhead thread, where repository work can run directly instead of being submitted again. */
+    public static boolean onWorkerThread() {
+        return ON_WORKER.get();
+    }
+
+    /** Waits for `future`, rethrowing the task's own SQLException or runtime exception. */
+    public static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    public void shutdown() {
+        for (Map<AdmissionController.RouteClass, Bulkhead> bulkheads : stores.values()) {
+            for (Bulkhead b : bulkheads.values()) b.executor.shutdown();
+        }
+    }
+
+    /** JSON snapshot of every store's bulkheads, for the admin endpoint. */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Map<AdmissionController.RouteClass, Bulkhead>> store : stores.entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(ShopJson.escape(store.getKey())).append("\":{");
+            boolean first = true;
+            for (Map.Entry<AdmissionController.RouteClass, Bulkhead> e : store.getValue().entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                ThreadPoolExecutor x = e.getValue().executor;
+                sb.append('"').append(e.getKey().name().toLowerCase()).append("\":")
+                        .append(String.format("{\"threads\":%d,\"active\":%d,\"queued\":%d,\"completed\":%d,\"rejected\":%d,\"timeout_s\":%d}",
+                                x.getMaximumPoolSize(), x.getActiveCount(), x.getQueue().size(), x.getCompletedTaskCount(),
+                                e.getValue().rejected.get(), e.getValue().timeoutSeconds));
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static int setting(String name, String suffix, int def) {
+        String v = System.getenv("PETSHOP_DB_" + name.toUpperCase() + "_" + suffix);
+        return v != null && !v.isEmpty() ? Integer.parseInt(v) : def;
+    }
+
+    private static class Bulkhead {
+        final ThreadPoolExecutor executor;
+        final int timeoutSeconds;
+        final AtomicInteger rejected = new AtomicInteger();
+
+        Bulkhead(String store, String name, int threads, int queue, int timeoutSeconds) {
+            int n = setting(name, "THREADS", threads);
+            this.timeoutSeconds = setting(name, "TIMEOUT_SECONDS", timeoutSeconds);
+            AtomicInteger seq = new AtomicInteger();
+            int timeout = this.timeoutSeconds;
+            this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(setting(name, "QUEUE", queue)),
+                    r -> {
+                        Thread t = new Thread(() -> {
+                            ON_WORKER.set(true);
+                            DBConnection.useStore(store);
+                            DBConnection.setThreadQueryTimeout(timeout);
+                            r.run();
+                        }, "db-" + store + "-" + name + "-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    (r, x) -> {
+                        rejected.incrementAndGet();
+                        throw new RejectedExecutionException("Database bulkhead '" + store + "/" + name + "' is full");
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed `?fields=` projection for one resource (pets, customers or sales).
+ *
+ * Each resource has a fixed list of JSON fields; a FieldSet is a bitmask over that list plus the
+ * SQL select list needed to fill it. Instances are parsed once per distinct (resource, spec) and
+ * cached, so the per-request cost is a map lookup and the serializers only test bits.
+ */
+public class FieldSet {
+    public static final String PETS = "pets";
+    public static final String CUSTOMERS = "customers";
+    public static final String SALES = "sales";
+
+    // JSON field name -> SQL expression, in output order. Bit i of the mask is the i-th entry.
+    private static final Map<String, Map<String, String>> FIELDS = new LinkedHashMap<>();
+
+    static {
+        Map<String, String> pets = new LinkedHashMap<>();
+        pets.put("id", "id");
+        pets.put("name", "name");
+        pets.put("species", "species");
+        pets.put("breed", "breed");
+        pets.put("age", "age");
+        pets.put("price", "price");
+        pets.put("stock", "quantity");
+        // stock minus active holds (StockHolds); computed from the same column
+        pets.put("available", "quantity");
+        FIELDS.put(PETS, pets);
+
+        Map<String, String> customers = new LinkedHashMap<>();
+        customers.put("id", "id");
+        customers.put("name", "name");
+        customers.put("email", "email");
+        customers.put("phone", "phone");
+        customers.put("address", "address");
+        FIELDS.put(CUSTOMERS, customers);
+
+        Map<String, String> sales = new LinkedHashMap<>();
+        sales.put("id", "s.id");
+        sales.put("quantity", "s.quantity");
+        sales.put("total_price", "s.total_price");
+        sales.put("sale_date", "s.sale_date");
+        sales.put("pet.name", "p.name AS pet_name");
+        sales.put("pet.species", "p.species AS pet_species");
+        sales.put("pet.breed", "p.breed AS pet_breed");
+        sales.put("customer.name", "c.name AS customer_name");
+        sales.put("customer.phone", "c.phone AS customer_phone");
+        FIELDS.put(SALES, sales);
+    }
+
+    // Bit positions, matching the insertion order above
+    public static final int PET_ID = 0, PET_NAME = 1, PET_SPECIES = 2, PET_BREED = 3, PET_AGE = 4, PET_PRICE = 5, PET_STOCK = 6, PET_AVAILABLE = 7;
+    public static final int CUSTOMER_ID = 0, CUSTOMER_NAME = 1, CUSTOMER_EMAIL = 2, CUSTOMER_PHONE = 3, CUSTOMER_ADDRESS = 4;
+    public static final int SALE_ID = 0, SALE_QUANTITY = 1, SALE_TOTAL = 2, SALE_DATE = 3,
+            SALE_PET_NAME = 4, SALE_PET_SPECIES = 5, SALE_PET_BREED = 6, SALE_CUSTOMER_NAME = 7, SALE_CUSTOMER_PHONE = 8;
+
+    private static final ConcurrentHashMap<String, FieldSet> CACHE = new ConcurrentHashMap<>();
+
+    public static final FieldSet ALL_PETS = parse(PETS, null);
+    public static final FieldSet ALL_CUSTOMERS = parse(CUSTOMERS, null);
+    public static final FieldSet ALL_SALES = parse(SALES, null);
+
+    private final String resource;
+    private final int mask;
+    private final String selectList;
+    private final List<String> names;
+    private final ConcurrentHashMap<String, String> sqlCache = new ConcurrentHashMap<>();
+
+    private FieldSet(String resource, int mask, String selectList, List<String> names) {
+        this.resource = resource;
+        this.mask = mask;
+        this.selectList = selectList;
+        this.names = names;
+    }
+
+    /**
+     * Returns the cached projection for a comma-separated field list; null or blank means every field.
+     * For sales, "pet" and "customer" select all of that nested object's fields.
+     *
+     * @throws IllegalArgumentException on an unknown field name
+     */
+    public static FieldSet parse(String resource, String spec) {
+        String key = resource + "?" + (spec == null ? "" : spec.trim());
+        FieldSet cached = CACHE.get(key);
+        if (cached != null) return cached;
+        // bound the cache: clients only ever use a handful of distinct projections
+        if (CACHE.size() > 1024) CACHE.clear();
+        return CACHE.computeIfAbsent(key, k -> build(resource, spec));
+    }
+
+    private static FieldSet build(String resource, String spec) {
+        Map<String, String> defs = FIELDS.get(resource);
+        if (defs == null) throw new IllegalArgumentException("Unknown resource: " + resource);
+        List<String> names = new ArrayList<>(defs.keySet());
+        int mask = 0;
+        if (spec != null) {
+            for (String raw : spec.split(",")) {
+                String f = raw.trim();
+                if (f.isEmpty()) continue;
+                int before = mask;
+                for (int i = 0; i < names.size(); i++) {
+                    String n = names.get(i);
+                    if (n.equals(f) || n.startsWith(f + ".")) mask |= 1 << i;
+                }
+                if (mask == before) throw new IllegalArgumentException("Unknown field: " + f);
+            }
+        }
+        if (mask == 0) mask = (1 << names.size()) - 1;
+        // sales rows always carry their foreign keys: caches key on them and they cost two ints
+        StringBuilder select = new StringBuilder(SALES.equals(resource) ? "s.pet_id, s.customer_id" : "");
+        List<String> selected = new ArrayList<>();
+        Set<String> exprs = new HashSet<>();
+        int i = 0;
+        for (Map.Entry<String, String> e : defs.entrySet()) {
+            if ((mask & (1 << i++)) == 0) continue;
+            selected.add(e.getKey());
+            if (!exprs.add(e.getValue())) continue;
+            if (select.length() > 0) select.append(", ");
+            select.append(e.getValue());
+        }
+        return new FieldSet(resource, mask, select.toString(), Collections.unmodifiableList(selected));
+    }
+
+    public String resource() {
+        return resource;
+    }
+
+    /** Selected JSON field names in output order; nested sales fields are dotted ("pet.name"). */
+    public List<String> names() {
+        return names;
+    }
+
+    public boolean has(int bit) {
+        return (mask & (1 << bit)) != 0;
+    }
+
+    /** True when any of the given bits is selected. */
+    public boolean hasAny(int... bits) {
+        for (int b : bits) if (has(b)) return true;
+        return false;
+    }
+
+    /** SQL select list for the selected fields, e.g. "id, name, quantity". */
+    public String selectList() {
+        return selectList;
+    }
+
+    /** "SELECT <select list> <rest>", built once per (field set, rest). */
+    public String select(String rest) {
+        return sqlCache.computeIfAbsent(rest, r -> "SELECT " + selectList + " " + r);
+    }
+}
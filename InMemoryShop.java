@@ -0,0 +1,652 @@
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory storage engine for the whole shop (demos, tests and benchmarks without MySQL).
+ *
+ * Each table is stored column-wise in parallel primitive arrays (struct-of-arrays) indexed by row
+ * number, with an {@link IntIntMap} from id to row. Rows are appended in insertion order so
+ * "newest first" is a reverse scan; deleted rows are tombstoned (id 0) and compacted once they
+ * make up half of a table. A single read/write lock guards all three tables so checkout is atomic.
+ * Pets and customers carry a change version per row, and deleted ids are kept as {@link Tombstones},
+ * for {@link PetRepository#changesSince}; versions start over when the process does.
+ * Projections are ignored here: rows are already in memory and copying references is free.
+ */
+public class InMemoryShop {
+    private static final Set<String> PET_COLUMNS = Set.of("name", "species", "breed", "age", "price", "quantity");
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // pets
+    private int petRows, petLive, nextPetId = 1;
+    private int[] petId = new int[16];
+    private String[] petName = new String[16];
+    private String[] petSpecies = new String[16];
+    private String[] petBreed = new String[16];
+    private int[] petAge = new int[16];
+    private double[] petPrice = new double[16];
+    private int[] petQuantity = new int[16];
+    private long[] petVersion = new long[16];
+    private long petChanges;
+    private final IntIntMap petIndex = new IntIntMap();
+    private final Tombstones petTombstones = new Tombstones();
+
+    // customers
+    private int customerRows, customerLive, nextCustomerId = 1;
+    private int[] customerId = new int[16];
+    private String[] customerName = new String[16];
+    private String[] customerEmail = new String[16];
+    private String[] customerPhone = new String[16];
+    private String[] customerAddress = new String[16];
+    private long[] customerVersion = new long[16];
+    private long customerChanges;
+    private final IntIntMap customerIndex = new IntIntMap();
+    private final Tombstones customerTombstones = new Tombstones();
+
+    // sales (insert-only)
+    private int saleRows, nextSaleId = 1;
+    private int[] saleId = new int[16];
+    private int[] salePetId = new int[16];
+    private int[] saleCustomerId = new int[16];
+    private int[] saleQuantity = new int[16];
+    private double[] saleTotal = new double[16];
+    private long[] saleMillis = new long[16];
+    // idempotency key -> sale id
+    private final Map<String, Integer> saleKeys = new HashMap<>();
+
+    private final PetRepository pets = new Pets();
+    private final CustomerRepository customers = new Customers();
+    private final SaleRepository sales = new Sales();
+
+    public PetRepository pets() {
+        return pets;
+    }
+
+    public CustomerRepository customers() {
+        return customers;
+    }
+
+    public SaleRepository sales() {
+        return sales;
+    }
+
+    private static int capacityFor(int length, int needed) {
+        return needed <= length ? length : Math.max(needed, length + (length >> 1));
+    }
+
+    // Ids of deleted rows with the change version of their delete, in version order
+    private static class Tombstones {
+        private int size;
+        private int[] ids = new int[16];
+        private long[] versions = new long[16];
+
+        void add(int id, long version) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                versions = Arrays.copyOf(versions, size * 2);
+            }
+            ids[size] = id;
+            versions[size++] = version;
+        }
+
+        List<Integer> since(long version) {
+            int i = size;
+            while (i > 0 && versions[i - 1] > version) i--;
+            List<Integer> out = new ArrayList<>(size - i);
+            for (; i < size; i++) out.add(ids[i]);
+            return out;
+        }
+    }
+
+    // Live rows changed after `since`, oldest change first
+    private static List<Integer> changedRows(int[] ids, long[] versions, int rows, long since) {
+        List<Integer> out = new ArrayList<>();
+        for (int r = 0; r < rows; r++) {
+            if (ids[r] != 0 && versions[r] > since) out.add(r);
+        }
+        out.sort(Comparator.comparingLong(r -> versions[r]));
+        return out;
+    }
+
+    // ---------- pet storage ----------
+    private void ensurePetCapacity(int needed) {
+        int cap = capacityFor(petId.length, needed);
+        if (cap == petId.length) return;
+        petId = Arrays.copyOf(petId, cap);
+        petName = Arrays.copyOf(petName, cap);
+        petSpecies = Arrays.copyOf(petSpecies, cap);
+        petBreed = Arrays.copyOf(petBreed, cap);
+        petAge = Arrays.copyOf(petAge, cap);
+        petPrice = Arrays.copyOf(petPrice, cap);
+        petQuantity = Arrays.copyOf(petQuantity, cap);
+        petVersion = Arrays.copyOf(petVersion, cap);
+    }
+
+    private Pet petAt(int row) {
+        return new Pet(petId[row], petName[row], petSpecies[row], petBreed[row], petAge[row], petPrice[row], petQuantity[row]);
+    }
+
+    private void compactPets() {
+        int w = 0;
+        petIndex.clear();
+        for (int r = 0; r < petRows; r++) {
+            if (petId[r] == 0) continue;
+            petId[w] = petId[r];
+            petName[w] = petName[r];
+            petSpecies[w] = petSpecies[r];
+            petBreed[w] = petBreed[r];
+            petAge[w] = petAge[r];
+            petPrice[w] = petPrice[r];
+            petQuantity[w] = petQuantity[r];
+            petVersion[w] = petVersion[r];
+            petIndex.put(petId[w], w);
+            w++;
+        }
+        Arrays.fill(petName, w, petRows, null);
+        Arrays.fill(petSpecies, w, petRows, null);
+        Arrays.fill(petBreed, w, petRows, null);
+        petRows = w;
+    }
+
+    // ---------- customer storage ----------
+    private void ensureCustomerCapacity(int needed) {
+        int cap = capacityFor(customerId.length, needed);
+        if (cap == customerId.length) return;
+        customerId = Arrays.copyOf(customerId, cap);
+        customerName = Arrays.copyOf(customerName, cap);
+        customerEmail = Arrays.copyOf(customerEmail, cap);
+        customerPhone = Arrays.copyOf(customerPhone, cap);
+        customerAddress = Arrays.copyOf(customerAddress, cap);
+        customerVersion = Arrays.copyOf(customerVersion, cap);
+    }
+
+    private Customer customerAt(int row) {
+        return new Customer(customerId[row], customerName[row], customerEmail[row], customerPhone[row], customerAddress[row]);
+    }
+
+    private void compactCustomers() {
+        int w = 0;
+        customerIndex.clear();
+        for (int r = 0; r < customerRows; r++) {
+            if (customerId[r] == 0) continue;
+            customerId[w] = customerId[r];
+            customerName[w] = customerName[r];
+            customerEmail[w] = customerEmail[r];
+            customerPhone[w] = customerPhone[r];
+            customerAddress[w] = customerAddress[r];
+            customerVersion[w] = customerVersion[r];
+            customerIndex.put(customerId[w], w);
+            w++;
+        }
+        Arrays.fill(customerName, w, customerRows, null);
+        Arrays.fill(customerEmail, w, customerRows, null);
+        Arrays.fill(customerPhone, w, customerRows, null);
+        Arrays.fill(customerAddress, w, customerRows, null);
+        customerRows = w;
+    }
+
+    // ---------- sale storage ----------
+    private void ensureSaleCapacity(int needed) {
+        int cap = capacityFor(saleId.length, needed);
+        if (cap == saleId.length) return;
+        saleId = Arrays.copyOf(saleId, cap);
+        salePetId = Arrays.copyOf(salePetId, cap);
+        saleCustomerId = Arrays.copyOf(saleCustomerId, cap);
+        saleQuantity = Arrays.copyOf(saleQuantity, cap);
+        saleTotal = Arrays.copyOf(saleTotal, cap);
+        saleMillis = Arrays.copyOf(saleMillis, cap);
+    }
+
+    private static long mix(long h, Object v) {
+        return h * 31 + Objects.hashCode(v);
+    }
+
+    private static String str(Object v) {
+        return v == null ? null : v.toString();
+    }
+
+    private static int toInt(Object v) {
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    private static double toDouble(Object v) {
+        return v instanceof Number ? ((Number) v).doubleValue() : Double.parseDouble(v.toString());
+    }
+
+    // ---------- Pets ----------
+    private class Pets implements PetRepository {
+        @Override
+        public List<Pet> findAll(FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                List<Pet> out = new ArrayList<>(petLive);
+                for (int r = petRows - 1; r >= 0; r--) {
+                    if (petId[r] != 0) out.add(petAt(r));
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public List<Pet> findInStock(FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                List<Pet> out = new ArrayList<>();
+                for (int r = 0; r < petRows; r++) {
+                    if (petId[r] != 0 && petQuantity[r] > 0) out.add(petAt(r));
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public Pet findById(int id, FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                int row = petIndex.get(id);
+                return row == IntIntMap.MISSING ? null : petAt(row);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int create(Pet pet) {
+            lock.writeLock().lock();
+            try {
+                ensurePetCapacity(petRows + 1);
+                int r = petRows++;
+                int id = nextPetId++;
+                petId[r] = id;
+                petName[r] = pet.name;
+                petSpecies[r] = pet.species;
+                petBreed[r] = pet.breed;
+                petAge[r] = pet.age;
+                petPrice[r] = pet.price;
+                petQuantity[r] = pet.quantity;
+                petVersion[r] = ++petChanges;
+                petIndex.put(id, r);
+                petLive++;
+                return id;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean update(int id, Map<String, Object> fields) throws SQLException {
+            lock.writeLock().lock();
+            try {
+                int r = petIndex.get(id);
+                if (r == IntIntMap.MISSING) return false;
+                for (Map.Entry<String, Object> e : fields.entrySet()) {
+                    Object v = e.getValue();
+                    switch (e.getKey()) {
+                        case "name": petName[r] = str(v); break;
+                        case "species": petSpecies[r] = str(v); break;
+                        case "breed": petBreed[r] = str(v); break;
+                        case "age": petAge[r] = toInt(v); break;
+                        case "price": petPrice[r] = toDouble(v); break;
+                        case "quantity": petQuantity[r] = toInt(v); break;
+                        default: throw new SQLException("Unknown column: " + e.getKey());
+                    }
+                }
+                petVersion[r] = ++petChanges;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public int[] bulkUpdate(List<PetBulkItem> items) throws SQLException {
+            lock.writeLock().lock();
+            try {
+                // validate first so a bad item leaves every row untouched
+                for (PetBulkItem item : items) {
+                    if (item.isAdjustment()) continue;
+                    if (item.fields.isEmpty()) throw new SQLException("No updatable fields provided");
+                    for (String column : item.fields.keySet()) {
+                        if (!PET_COLUMNS.contains(column)) throw new SQLException("Unknown column: " + column);
+                    }
+                }
+                int[] results = new int[items.size()];
+                for (int i = 0; i < items.size(); i++) {
+                    PetBulkItem item = items.get(i);
+                    if (!item.isAdjustment()) {
+                        results[i] = update(item.id, item.fields) ? 1 : 0;
+                        continue;
+                    }
+                    double factor = item.priceFactor();
+                    long version = 0;
+                    for (int r = 0; r < petRows; r++) {
+                        if (petId[r] != 0 && item.species.equals(petSpecies[r])) {
+                            petPrice[r] = Math.round(petPrice[r] * factor * 100) / 100.0;
+                            // one version for the whole adjustment, like its single UPDATE in SQL
+                            if (version == 0) version = ++petChanges;
+                            petVersion[r] = version;
+                            results[i]++;
+                        }
+                    }
+                }
+                return results;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean delete(int id) {
+            lock.writeLock().lock();
+            try {
+                int r = petIndex.remove(id);
+                if (r == IntIntMap.MISSING) return false;
+                petId[r] = 0;
+                petLive--;
+                petTombstones.add(id, ++petChanges);
+                if (petRows > 64 && petLive < petRows / 2) compactPets();
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public ChangeSet<Pet> changesSince(long since, FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                boolean full = since > petChanges;
+                List<Pet> changed = new ArrayList<>();
+                for (int r : changedRows(petId, petVersion, petRows, full ? 0 : since)) changed.add(petAt(r));
+                return new ChangeSet<>(petChanges, full, changed, full ? Collections.emptyList() : petTombstones.since(since));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public long checksum() {
+            lock.readLock().lock();
+            try {
+                long h = 1;
+                for (int r = 0; r < petRows; r++) {
+                    if (petId[r] == 0) continue;
+                    h = mix(h, petId[r]);
+                    h = mix(h, petName[r]);
+                    h = mix(h, petSpecies[r]);
+                    h = mix(h, petBreed[r]);
+                    h = mix(h, petAge[r]);
+                    h = mix(h, petPrice[r]);
+                    h = mix(h, petQuantity[r]);
+                }
+                return h;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // ---------- Customers ----------
+    private class Customers implements CustomerRepository {
+        @Override
+        public List<Customer> findAll(FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                List<Customer> out = new ArrayList<>(customerLive);
+                for (int r = customerRows - 1; r >= 0; r--) {
+                    if (customerId[r] != 0) out.add(customerAt(r));
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public Customer findById(int id, FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                int row = customerIndex.get(id);
+                return row == IntIntMap.MISSING ? null : customerAt(row);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int create(Customer customer) {
+            lock.writeLock().lock();
+            try {
+                ensureCustomerCapacity(customerRows + 1);
+                int r = customerRows++;
+                int id = nextCustomerId++;
+                customerId[r] = id;
+                customerName[r] = customer.name;
+                customerEmail[r] = customer.email;
+                customerPhone[r] = customer.phone;
+                customerAddress[r] = customer.address;
+                customerVersion[r] = ++customerChanges;
+                customerIndex.put(id, r);
+                customerLive++;
+                return id;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean update(int id, Map<String, Object> fields) throws SQLException {
+            lock.writeLock().lock();
+            try {
+                int r = customerIndex.get(id);
+                if (r == IntIntMap.MISSING) return false;
+                for (Map.Entry<String, Object> e : fields.entrySet()) {
+                    String v = str(e.getValue());
+                    switch (e.getKey()) {
+                        case "name": customerName[r] = v; break;
+                        case "email": customerEmail[r] = v; break;
+                        case "phone": customerPhone[r] = v; break;
+                        case "address": customerAddress[r] = v; break;
+                        default: throw new SQLException("Unknown column: " + e.getKey());
+                    }
+                }
+                customerVersion[r] = ++customerChanges;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean delete(int id) {
+            lock.writeLock().lock();
+            try {
+                int r = customerIndex.remove(id);
+                if (r == IntIntMap.MISSING) return false;
+                customerId[r] = 0;
+                customerLive--;
+                customerTombstones.add(id, ++customerChanges);
+                if (customerRows > 64 && customerLive < customerRows / 2) compactCustomers();
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public ChangeSet<Customer> changesSince(long since, FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                boolean full = since > customerChanges;
+                List<Customer> changed = new ArrayList<>();
+                for (int r : changedRows(customerId, customerVersion, customerRows, full ? 0 : since)) changed.add(customerAt(r));
+                return new ChangeSet<>(customerChanges, full, changed, full ? Collections.emptyList() : customerTombstones.since(since));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public long checksum() {
+            lock.readLock().lock();
+            try {
+                long h = 1;
+                for (int r = 0; r < customerRows; r++) {
+                    if (customerId[r] == 0) continue;
+                    h = mix(h, customerId[r]);
+                    h = mix(h, customerName[r]);
+                    h = mix(h, customerEmail[r]);
+                    h = mix(h, customerPhone[r]);
+                    h = mix(h, customerAddress[r]);
+                }
+                return h;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // ---------- Sales ----------
+    private class Sales implements SaleRepository {
+        @Override
+        public List<Sale> findAll(FieldSet fields) {
+            lock.readLock().lock();
+            try {
+                List<Sale> out = new ArrayList<>(saleRows);
+                for (int r = saleRows - 1; r >= 0; r--) {
+                    Sale s = joinedSale(r);
+                    if (s != null) out.add(s);
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // nothing is archived here
+        @Override
+        public List<Sale> findBetween(FieldSet fields, long fromMillis, long toMillis) {
+            lock.readLock().lock();
+            try {
+                List<Sale> out = new ArrayList<>();
+                for (int r = saleRows - 1; r >= 0; r--) {
+                    if (saleMillis[r] < fromMillis || saleMillis[r] >= toMillis) continue;
+                    Sale s = joinedSale(r);
+                    if (s != null) out.add(s);
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public Map<Integer, double[]> totalsBetween(boolean byCustomer, Collection<Integer> ids, long fromMillis, long toMillis) {
+            lock.readLock().lock();
+            try {
+                int[] key = byCustomer ? saleCustomerId : salePetId;
+                Set<Integer> wanted = new HashSet<>(ids);
+                Map<Integer, double[]> out = new HashMap<>();
+                for (int r = 0; r < saleRows; r++) {
+                    if (saleMillis[r] < fromMillis || saleMillis[r] >= toMillis || !wanted.contains(key[r])) continue;
+                    double[] t = out.computeIfAbsent(key[r], k -> new double[2]);
+                    t[0] += saleQuantity[r];
+                    t[1] += saleTotal[r];
+                }
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public Sale findById(int id) {
+            lock.readLock().lock();
+            try {
+                // ids are handed out sequentially and sales are never deleted, so id n is row n - 1
+                int r = id - 1;
+                return r >= 0 && r < saleRows && saleId[r] == id ? joinedSale(r) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // inner-join semantics: null when the sale's pet or customer was deleted
+        private Sale joinedSale(int r) {
+            int p = petIndex.get(salePetId[r]);
+            int c = customerIndex.get(saleCustomerId[r]);
+            if (p == IntIntMap.MISSING || c == IntIntMap.MISSING) return null;
+            return new Sale(saleId[r], salePetId[r], saleCustomerId[r], saleQuantity[r], saleTotal[r],
+                    new Timestamp(saleMillis[r]), petName[p], petSpecies[p], petBreed[p],
+                    customerName[c], customerPhone[c]);
+        }
+
+        @Override
+        public int checkout(int petIdValue, int customerIdValue, int quantity, double totalPrice, String idempotencyKey) throws SQLException {
+            lock.writeLock().lock();
+            try {
+                if (idempotencyKey != null && saleKeys.containsKey(idempotencyKey)) {
+                    throw new SQLIntegrityConstraintViolationException("Duplicate idempotency key");
+                }
+                int p = petIndex.get(petIdValue);
+                if (p == IntIntMap.MISSING) throw new SQLException("Pet not found");
+                if (petQuantity[p] < quantity) throw new SQLException("Not enough stock");
+                if (!customerIndex.containsKey(customerIdValue)) throw new SQLException("Customer not found");
+                petQuantity[p] -= quantity;
+
+                ensureSaleCapacity(saleRows + 1);
+                int r = saleRows++;
+                int id = nextSaleId++;
+                saleId[r] = id;
+                salePetId[r] = petIdValue;
+                saleCustomerId[r] = customerIdValue;
+                saleQuantity[r] = quantity;
+                saleTotal[r] = totalPrice;
+                saleMillis[r] = System.currentTimeMillis();
+                if (idempotencyKey != null) saleKeys.put(idempotencyKey, id);
+                return id;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public Integer saleForKey(String idempotencyKey) {
+            lock.readLock().lock();
+            try {
+                return saleKeys.get(idempotencyKey);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void scan(RowVisitor visitor) {
+            lock.readLock().lock();
+            try {
+                for (int r = 0; r < saleRows; r++) {
+                    visitor.row(saleId[r], salePetId[r], saleCustomerId[r], saleQuantity[r], saleTotal[r], saleMillis[r]);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
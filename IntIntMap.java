@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from positive int keys to int values, with no boxing.
+ *
+ * Key 0 marks an empty slot, so callers must only store positive keys (database ids are); lookups of
+ * other keys always miss.
+ * Not thread-safe; owners guard it with their own lock.
+ */
+public class IntIntMap {
+    public static final int MISSING = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[cap];
+        values = new int[cap];
+        mask = cap - 1;
+    }
+
+    private static int mix(int k) {
+        int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the value for the key, or {@link #MISSING}. */
+    public int get(int key) {
+        if (key <= 0) return MISSING;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) return values[i];
+            if (k == 0) return MISSING;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != MISSING;
+    }
+
+    public void put(int key, int value) {
+        if (key <= 0) throw new IllegalArgumentException("key must be positive: " + key);
+        if ((size + 1) * 4 > keys.length * 3) grow();
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == 0) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    /** Removes the key and returns its value, or {@link #MISSING}. */
+    public int remove(int key) {
+        if (key <= 0) return MISSING;
+        int i = mix(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == 0) return MISSING;
+            i = (i + 1) & mask;
+        }
+        int old = values[i];
+        // backward-shift deletion keeps probe chains intact without tombstones
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
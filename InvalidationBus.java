@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Peer-to-peer change notices between MainServer instances, so one instance's in-process caches
+ * (catalog, sales feed, analytics) hear about writes handled by another.
+ *
+ * Every instance listens on PETSHOP_BUS_PORT and connects to each address in PETSHOP_BUS_PEERS
+ * ("host:port,host:port"); running two instances on one machine with different ports and each
+ * other as peers is a complete loopback setup. Notices published within one flush interval
+ * (PETSHOP_BUS_FLUSH_MS, default 20) are de-duplicated and sent as one batch.
+ *
+ * Wire format, UTF-8 lines over TCP: a batch is "N <instance> <seq> <count>" followed by count
+ * lines "<KIND> <id> <store>". Sequence numbers increase by one per batch and per sending instance; an idle
+ * instance repeats its last sequence number as a heartbeat with count 0 every second. A receiver
+ * that sees a sequence number other than the one it expects (a dropped connection, a peer it only
+ * just met mid-stream) cannot know what it missed and asks its listener to resync instead of
+ * applying notices on top of stale state.
+ */
+public class InvalidationBus {
+    public enum Kind { PET, CUSTOMER, STOCK, SALE }
+
+    /** Applies notices from other instances. Id 0 means "any row of this kind". */
+    public interface Listener {
+        void changed(String store, Kind kind, int id) throws Exception;
+
+        /** Called when notices may have been missed: reload everything derived from the database. */
+        void resync() throws Exception;
+    }
+
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    private final long flushMillis;
+    private final Listener listener;
+
+    // Notices waiting for the next flush, in publish order; the set collapses repeats
+    private final Set<String> pending = new LinkedHashSet<>();
+    private long seq;
+    private long lastSentAt;
+    // sender instance -> last sequence number applied
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "bus-flush"));
+    private ServerSocket serverSocket;
+
+    private static class Peer {
+        final InetSocketAddress address;
+        Socket socket;
+        Writer out;
+        long nextAttemptAt;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    public InvalidationBus(int port, String peerList, long flushMillis, Listener listener) {
+        this.port = port;
+        this.flushMillis = flushMillis;
+        this.listener = listener;
+        if (peerList != null) {
+            for (String p : peerList.split(",")) {
+                p = p.trim();
+                if (p.isEmpty()) continue;
+                int colon = p.lastIndexOf(':');
+                peers.add(new Peer(InetSocketAddress.createUnresolved(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1)))));
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        daemon(this::acceptLoop, "bus-accept").start();
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        flusher.shutdown();
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (peers) {
+            for (Peer p : peers) disconnect(p);
+        }
+    }
+
+    /** Queues a notice about a row of `store` for the other instances. */
+    public void publish(String store, Kind kind, int id) {
+        published.incrementAndGet();
+        synchronized (pending) {
+            if (!pending.add(kind + " " + id + " " + store)) coalesced.incrementAndGet();
+        }
+    }
+
+    // ---------- sending ----------
+
+    private void flush() {
+        String frame;
+        synchronized (pending) {
+            long now = System.currentTimeMillis();
+            if (pending.isEmpty() && now - lastSentAt < HEARTBEAT_MILLIS) return;
+            StringBuilder sb = new StringBuilder();
+            if (!pending.isEmpty()) seq++;
+            sb.append("N ").append(instanceId).append(' ').append(seq).append(' ').append(pending.size()).append('\n');
+            for (String n : pending) sb.append(n).append('\n');
+            if (!pending.isEmpty()) batchesSent.incrementAndGet();
+            pending.clear();
+            lastSentAt = now;
+            frame = sb.toString();
+        }
+        synchronized (peers) {
+            for (Peer p : peers) send(p, frame);
+        }
+    }
+
+    // A peer that cannot be reached just misses the frame; it notices the gap once it hears from us again
+    private void send(Peer p, String frame) {
+        long now = System.currentTimeMillis();
+        if (p.out == null) {
+            if (now < p.nextAttemptAt) return;
+            try {
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress(p.address.getHostString(), p.address.getPort()), 500);
+                s.setTcpNoDelay(true);
+                p.socket = s;
+                p.out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                p.nextAttemptAt = now + RECONNECT_MILLIS;
+                return;
+            }
+        }
+        try {
+            p.out.write(frame);
+            p.out.flush();
+        } catch (IOException e) {
+            disconnect(p);
+            p.nextAttemptAt = now + RECONNECT_MILLIS;
+        }
+    }
+
+    private static void disconnect(Peer p) {
+        try {
+            if (p.socket != null) p.socket.close();
+        } catch (IOException ignored) {
+        }
+        p.socket = null;
+        p.out = null;
+    }
+
+    // ---------- receiving ----------
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                daemon(() -> readLoop(s), "bus-peer-" + s.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) System.err.println("Invalidation bus accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket s) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            String header;
+            while ((header = in.readLine()) != null) {
+                String[] h = header.split(" ");
+                if (h.length != 4 || !"N".equals(h[0])) throw new IOException("Bad frame header: " + header);
+                String sender = h[1];
+                long frameSeq = Long.parseLong(h[2]);
+                int count = Integer.parseInt(h[3]);
+                Set<String> notices = new LinkedHashSet<>();
+                for (int i = 0; i < count; i++) {
+                    String line = in.readLine();
+                    if (line == null) throw new IOException("Truncated frame");
+                    if (line.split(" ").length != 3) throw new IOException("Bad notice: " + line);
+                    notices.add(line);
+                }
+                if (sender.equals(instanceId)) continue; // our own frames, when we are in our own peer list
+                apply(sender, frameSeq, count, notices);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Invalidation bus connection from " + s.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        }
+    }
+
+    private void apply(String sender, long frameSeq, int count, Set<String> notices) {
+        Long prev = lastSeen.get(sender);
+        long expected = (prev == null ? 0 : prev) + (count > 0 ? 1 : 0);
+        lastSeen.put(sender, frameSeq);
+        try {
+            if (frameSeq != expected) {
+                resyncs.incrementAndGet();
+                System.err.println("Invalidation bus: expected " + sender + "#" + expected + " but got #" + frameSeq + "; resyncing");
+                listener.resync();
+                return;
+            }
+            for (String n : notices) {
+                String[] f = n.split(" ");
+                received.incrementAndGet();
+                listener.changed(f[2], Kind.valueOf(f[0]), Integer.parseInt(f[1]));
+            }
+        } catch (Exception e) {
+            // could not apply: forget the sender so its next frame forces a resync
+            lastSeen.remove(sender);
+            System.err.println("Invalidation bus: failed to apply notices from " + sender + ": " + e);
+        }
+    }
+
+    /** JSON counters for the admin endpoint. */
+    public String snapshot() {
+        int connected = 0;
+        synchronized (peers) {
+            for (Peer p : peers) if (p.out != null) connected++;
+        }
+        long currentSeq;
+        synchronized (pending) {
+            currentSeq = seq;
+        }
+        return String.format("{\"instance\":\"%s\",\"seq\":%d,\"peers\":%d,\"peers_connected\":%d,\"senders_seen\":%d,"
+                        + "\"published\":%d,\"coalesced\":%d,\"batches_sent\":%d,\"received\":%d,\"resyncs\":%d}",
+                instanceId, currentSeq, peers.size(), connected, lastSeen.size(),
+                published.get(), coalesced.get(), batchesSent.get(), received.get(), resyncs.get());
+    }
+}
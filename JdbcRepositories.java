@@ -0,0 +1,617 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MySQL-backed repositories. Every call borrows a connection from {@link DBConnection#getConnection()}
+ * and closes it before returning.
+ *
+ * Writes to pets and customers stamp the rows they change with the table's next change version
+ * (deletes leave a row in `tombstones`) for delta sync; stock taken by sales is not stamped. The version is taken last, after the rows are
+ * locked: taking it locks the table's `change_versions` row until commit, so versions become visible
+ * in order (a reader that sees version n sees everything up to n) while the lock is held only briefly.
+ */
+public class JdbcRepositories {
+    private static final Set<String> PET_COLUMNS = Set.of("name", "species", "breed", "age", "price", "quantity");
+    private static final Set<String> CUSTOMER_COLUMNS = Set.of("name", "email", "phone", "address");
+    // TIMESTAMP columns end in 2038
+    private static final long MAX_TIMESTAMP_MILLIS = 2147483647000L;
+
+    // Cold storage for sales partitions older than PETSHOP_ARCHIVE_MONTHS, per store; see MainServer
+    private static final Map<String, SalesArchive> ARCHIVES = new ConcurrentHashMap<>();
+
+    /** The current store's sales archive: PETSHOP_ARCHIVE_DIR, or a subdirectory per store when there are several. */
+    static SalesArchive archive() {
+        return ARCHIVES.computeIfAbsent(DBConnection.currentStore(), store -> {
+            Path dir = Paths.get(System.getenv().getOrDefault("PETSHOP_ARCHIVE_DIR", "sales-archive"));
+            return new SalesArchive(store, DBConnection.stores().size() > 1 ? dir.resolve(store) : dir);
+        });
+    }
+
+    // Builds "UPDATE table SET a=?,b=? WHERE id=?" from a whitelisted column map; parameters follow the map order.
+    private static String updateSql(String table, Set<String> allowed, Map<String, Object> fields) throws SQLException {
+        if (fields.isEmpty()) throw new SQLException("No updatable fields provided");
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (String column : fields.keySet()) {
+            if (!allowed.contains(column)) throw new SQLException("Unknown column: " + column);
+            sql.append(column).append("=?,");
+        }
+        sql.setLength(sql.length() - 1);
+        return sql.append(" WHERE id=?").toString();
+    }
+
+    private interface Write<T> {
+        T run(Connection c) throws SQLException;
+    }
+
+    private interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    // Runs `write` as one transaction on a pooled connection
+    private static <T> T inTransaction(Write<T> write) throws SQLException {
+        try (Connection c = DBConnection.getConnection()) {
+            try {
+                c.setAutoCommit(false);
+                T result = write.run(c);
+                c.commit();
+                return result;
+            } catch (SQLException err) {
+                c.rollback();
+                throw err;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    // Takes the table's next change version; the counter row stays locked until the transaction ends
+    private static long nextVersion(Connection c, String table) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("UPDATE change_versions SET version = LAST_INSERT_ID(version + 1) WHERE table_name = ?")) {
+            ps.setString(1, table);
+            if (ps.executeUpdate() == 0) throw new SQLException("No change version for " + table + "; run the schema migrations");
+        }
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT LAST_INSERT_ID()")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void stampVersion(Connection c, String table, int id) throws SQLException {
+        long version = nextVersion(c, table);
+        try (PreparedStatement ps = c.prepareStatement("UPDATE " + table + " SET version = ? WHERE id = ?")) {
+            ps.setLong(1, version);
+            ps.setInt(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    private static boolean updateColumns(String table, Set<String> allowed, int id, Map<String, Object> fields) throws SQLException {
+        String sql = updateSql(table, allowed, fields);
+        return inTransaction(c -> {
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                int i = 1;
+                for (Object v : fields.values()) ps.setObject(i++, v);
+                ps.setInt(i, id);
+                if (ps.executeUpdate() == 0) return false;
+            }
+            stampVersion(c, table, id);
+            return true;
+        });
+    }
+
+    private static boolean deleteById(String table, int id) throws SQLException {
+        return inTransaction(c -> {
+            try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + table + " WHERE id = ?")) {
+                ps.setInt(1, id);
+                if (ps.executeUpdate() == 0) return false;
+            }
+            long version = nextVersion(c, table);
+            try (PreparedStatement ps = c.prepareStatement("REPLACE INTO tombstones (table_name, row_id, version) VALUES (?, ?, ?)")) {
+                ps.setString(1, table);
+                ps.setInt(2, id);
+                ps.setLong(3, version);
+                ps.executeUpdate();
+            }
+            return true;
+        });
+    }
+
+    // Reads the counter before the rows: a row changed in between is sent again next time, never skipped
+    private static <T> ChangeSet<T> readChanges(String table, long since, FieldSet f, RowReader<T> reader) throws SQLException {
+        try (Connection c = DBConnection.getConnection()) {
+            long version;
+            try (PreparedStatement ps = c.prepareStatement("SELECT version FROM change_versions WHERE table_name = ?")) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) throw new SQLException("No change version for " + table + "; run the schema migrations");
+                    version = rs.getLong(1);
+                }
+            }
+            // a version from the future: the database was restored or replaced under the client
+            boolean full = since > version;
+            List<T> changed = new ArrayList<>();
+            try (PreparedStatement ps = c.prepareStatement(f.select("FROM " + table + " WHERE version > ? ORDER BY version"))) {
+                ps.setLong(1, full ? 0 : since);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) changed.add(reader.read(rs));
+                }
+            }
+            List<Integer> deleted = new ArrayList<>();
+            if (!full) {
+                try (PreparedStatement ps = c.prepareStatement("SELECT row_id FROM tombstones WHERE table_name = ? AND version > ? ORDER BY version")) {
+                    ps.setString(1, table);
+                    ps.setLong(2, since);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) deleted.add(rs.getInt(1));
+                    }
+                }
+            }
+            return new ChangeSet<>(version, full, changed, deleted);
+        }
+    }
+
+    // CHECKSUM TABLE hashes every live row, so any insert/update/delete changes it
+    private static long tableChecksum(String table) throws SQLException {
+        try (Connection c = DBConnection.getConnection();
+             PreparedStatement ps = c.prepareStatement("CHECKSUM TABLE " + table);
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(2) : 0;
+        }
+    }
+
+    private static int generatedId(PreparedStatement ps) throws SQLException {
+        try (ResultSet keys = ps.getGeneratedKeys()) {
+            return keys.next() ? keys.getInt(1) : 0;
+        }
+    }
+
+    // ---------- Pets ----------
+    static class Pets implements PetRepository {
+        // Reads only the columns the projection selected
+        private static Pet read(ResultSet rs, FieldSet f) throws SQLException {
+            return new Pet(
+                    f.has(FieldSet.PET_ID) ? rs.getInt("id") : 0,
+                    f.has(FieldSet.PET_NAME) ? rs.getString("name") : null,
+                    f.has(FieldSet.PET_SPECIES) ? rs.getString("species") : null,
+                    f.has(FieldSet.PET_BREED) ? rs.getString("breed") : null,
+                    f.has(FieldSet.PET_AGE) ? rs.getInt("age") : 0,
+                    f.has(FieldSet.PET_PRICE) ? rs.getDouble("price") : 0.0,
+                    f.hasAny(FieldSet.PET_STOCK, FieldSet.PET_AVAILABLE) ? rs.getInt("quantity") : 0);
+        }
+
+        private List<Pet> query(String sql, FieldSet f) throws SQLException {
+            List<Pet> pets = new ArrayList<>();
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(sql);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) pets.add(read(rs, f));
+            }
+            return pets;
+        }
+
+        @Override
+        public List<Pet> findAll(FieldSet fields) throws SQLException {
+            return query(fields.select("FROM pets ORDER BY created_at DESC"), fields);
+        }
+
+        @Override
+        public List<Pet> findInStock(FieldSet fields) throws SQLException {
+            return query(fields.select("FROM pets WHERE quantity > 0"), fields);
+        }
+
+        @Override
+        public Pet findById(int id, FieldSet fields) throws SQLException {
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(fields.select("FROM pets WHERE id = ?"))) {
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? read(rs, fields) : null;
+                }
+            }
+        }
+
+        @Override
+        public int create(Pet pet) throws SQLException {
+            return inTransaction(c -> {
+                int id;
+                try (PreparedStatement ps = c.prepareStatement(
+                        "INSERT INTO pets (name, species, breed, age, price, quantity) VALUES (?, ?, ?, ?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS)) {
+                    ps.setString(1, pet.name);
+                    ps.setString(2, pet.species);
+                    ps.setString(3, pet.breed);
+                    if (pet.age > 0) ps.setInt(4, pet.age); else ps.setNull(4, java.sql.Types.INTEGER);
+                    ps.setDouble(5, pet.price);
+                    ps.setInt(6, pet.quantity);
+                    ps.executeUpdate();
+                    id = generatedId(ps);
+                }
+                stampVersion(c, "pets", id);
+                return id;
+            });
+        }
+
+        @Override
+        public boolean update(int id, Map<String, Object> fields) throws SQLException {
+            return updateColumns("pets", PET_COLUMNS, id, fields);
+        }
+
+        @Override
+        public int[] bulkUpdate(List<PetBulkItem> items) throws SQLException {
+            int[] results = new int[items.size()];
+            // one PreparedStatement per SQL shape; runs of consecutive items with the same shape are
+            // sent as one JDBC batch, and a change of shape flushes so items still apply in order
+            Map<String, PreparedStatement> statements = new HashMap<>();
+            try (Connection c = DBConnection.getConnection()) {
+                try {
+                    c.setAutoCommit(false);
+                    PreparedStatement pending = null;
+                    int batchStart = 0;
+                    for (int i = 0; i < items.size(); i++) {
+                        PetBulkItem item = items.get(i);
+                        String sql = item.isAdjustment()
+                                ? "UPDATE pets SET price = ROUND(price * ?, 2) WHERE species = ?"
+                                : updateSql("pets", PET_COLUMNS, item.fields);
+                        PreparedStatement ps = statements.get(sql);
+                        if (ps == null) {
+                            ps = c.prepareStatement(sql);
+                            statements.put(sql, ps);
+                        }
+                        if (pending != null && pending != ps) {
+                            copyCounts(pending.executeBatch(), results, batchStart);
+                            batchStart = i;
+                        }
+                        pending = ps;
+                        if (item.isAdjustment()) {
+                            ps.setDouble(1, item.priceFactor());
+                            ps.setString(2, item.species);
+                        } else {
+                            int p = 1;
+                            for (Object v : item.fields.values()) ps.setObject(p++, v);
+                            ps.setInt(p, item.id);
+                        }
+                        ps.addBatch();
+                    }
+                    if (pending != null) copyCounts(pending.executeBatch(), results, batchStart);
+                    stampBulkVersion(c, items, results);
+                    c.commit();
+                    return results;
+                } catch (SQLException err) {
+                    c.rollback();
+                    throw err;
+                } finally {
+                    for (PreparedStatement ps : statements.values()) ps.close();
+                    c.setAutoCommit(true);
+                }
+            }
+        }
+
+        private static void copyCounts(int[] counts, int[] results, int offset) {
+            System.arraycopy(counts, 0, results, offset, counts.length);
+        }
+
+        // The bulk update commits as a whole, so every row it touched gets the same version
+        private static void stampBulkVersion(Connection c, List<PetBulkItem> items, int[] results) throws SQLException {
+            long version = nextVersion(c, "pets");
+            try (PreparedStatement byId = c.prepareStatement("UPDATE pets SET version = ? WHERE id = ?");
+                 PreparedStatement bySpecies = c.prepareStatement("UPDATE pets SET version = ? WHERE species = ?")) {
+                for (int i = 0; i < items.size(); i++) {
+                    PetBulkItem item = items.get(i);
+                    if (results[i] == 0) continue;
+                    PreparedStatement ps = item.isAdjustment() ? bySpecies : byId;
+                    ps.setLong(1, version);
+                    if (item.isAdjustment()) ps.setString(2, item.species); else ps.setInt(2, item.id);
+                    ps.addBatch();
+                }
+                byId.executeBatch();
+                bySpecies.executeBatch();
+            }
+        }
+
+        @Override
+        public boolean delete(int id) throws SQLException {
+            return deleteById("pets", id);
+        }
+
+        @Override
+        public ChangeSet<Pet> changesSince(long since, FieldSet fields) throws SQLException {
+            return readChanges("pets", since, fields, rs -> read(rs, fields));
+        }
+
+        @Override
+        public long checksum() throws SQLException {
+            return tableChecksum("pets");
+        }
+    }
+
+    // ---------- Customers ----------
+    static class Customers implements CustomerRepository {
+        private static Customer read(ResultSet rs, FieldSet f) throws SQLException {
+            return new Customer(
+                    f.has(FieldSet.CUSTOMER_ID) ? rs.getInt("id") : 0,
+                    f.has(FieldSet.CUSTOMER_NAME) ? rs.getString("name") : null,
+                    f.has(FieldSet.CUSTOMER_EMAIL) ? rs.getString("email") : null,
+                    f.has(FieldSet.CUSTOMER_PHONE) ? rs.getString("phone") : null,
+                    f.has(FieldSet.CUSTOMER_ADDRESS) ? rs.getString("address") : null);
+        }
+
+        @Override
+        public List<Customer> findAll(FieldSet fields) throws SQLException {
+            List<Customer> customers = new ArrayList<>();
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(fields.select("FROM customers ORDER BY created_at DESC"));
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) customers.add(read(rs, fields));
+            }
+            return customers;
+        }
+
+        @Override
+        public Customer findById(int id, FieldSet fields) throws SQLException {
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(fields.select("FROM customers WHERE id = ?"))) {
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? read(rs, fields) : null;
+                }
+            }
+        }
+
+        @Override
+        public int create(Customer customer) throws SQLException {
+            return inTransaction(c -> {
+                int id;
+                try (PreparedStatement ps = c.prepareStatement(
+                        "INSERT INTO customers (name, email, phone, address) VALUES (?, ?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS)) {
+                    ps.setString(1, customer.name);
+                    ps.setString(2, customer.email);
+                    ps.setString(3, customer.phone);
+                    ps.setString(4, customer.address);
+                    ps.executeUpdate();
+                    id = generatedId(ps);
+                }
+                stampVersion(c, "customers", id);
+                return id;
+            });
+        }
+
+        @Override
+        public boolean update(int id, Map<String, Object> fields) throws SQLException {
+            return updateColumns("customers", CUSTOMER_COLUMNS, id, fields);
+        }
+
+        @Override
+        public boolean delete(int id) throws SQLException {
+            return deleteById("customers", id);
+        }
+
+        @Override
+        public ChangeSet<Customer> changesSince(long since, FieldSet fields) throws SQLException {
+            return readChanges("customers", since, fields, rs -> read(rs, fields));
+        }
+
+        @Override
+        public long checksum() throws SQLException {
+            return tableChecksum("customers");
+        }
+    }
+
+    // ---------- Sales ----------
+    static class Sales implements SaleRepository {
+        @Override
+        public List<Sale> findAll(FieldSet f) throws SQLException {
+            List<Sale> sales = new ArrayList<>();
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(f.select(
+                         "FROM sales s JOIN pets p ON s.pet_id = p.id JOIN customers c ON s.customer_id = c.id ORDER BY s.sale_date DESC"));
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) sales.add(read(rs, f));
+            }
+            return sales;
+        }
+
+        // The range prunes the query to the partitions it covers; archived months come after them,
+        // joined here with the current pets and customers (inner-join semantics, like the SQL)
+        @Override
+        public List<Sale> findBetween(FieldSet f, long fromMillis, long toMillis) throws SQLException {
+            List<Sale> sales = new ArrayList<>();
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(f.select(
+                         "FROM sales s JOIN pets p ON s.pet_id = p.id JOIN customers c ON s.customer_id = c.id "
+                                 + "WHERE s.sale_date >= ? AND s.sale_date < ? ORDER BY s.sale_date DESC"))) {
+                ps.setTimestamp(1, new Timestamp(Math.max(fromMillis, 0)));
+                ps.setTimestamp(2, new Timestamp(Math.min(toMillis, MAX_TIMESTAMP_MILLIS)));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) sales.add(read(rs, f));
+                }
+            }
+            SalesArchive archive = archive();
+            List<YearMonth> archived = archive.monthsToRead(fromMillis, toMillis);
+            if (archived.isEmpty()) return sales;
+
+            Map<Integer, Pet> pets = new HashMap<>();
+            for (Pet p : new Pets().findAll(FieldSet.ALL_PETS)) pets.put(p.id, p);
+            Map<Integer, Customer> customers = new HashMap<>();
+            for (Customer cu : new Customers().findAll(FieldSet.ALL_CUSTOMERS)) customers.put(cu.id, cu);
+            for (int i = archived.size() - 1; i >= 0; i--) {
+                List<Sale> month = new ArrayList<>();
+                archive.read(archived.get(i), fromMillis, toMillis, (id, petId, customerId, quantity, totalPrice, saleMillis) -> {
+                    Pet p = pets.get(petId);
+                    Customer cu = customers.get(customerId);
+                    if (p == null || cu == null) return;
+                    month.add(new Sale(id, petId, customerId, quantity, totalPrice, new Timestamp(saleMillis),
+                            p.name, p.species, p.breed, cu.name, cu.phone));
+                });
+                Collections.reverse(month);
+                sales.addAll(month);
+            }
+            return sales;
+        }
+
+        // idx_sales_pet / idx_sales_customer narrow it to the leaders' rows, partitions to the range
+        @Override
+        public Map<Integer, double[]> totalsBetween(boolean byCustomer, Collection<Integer> ids, long fromMillis, long toMillis) throws SQLException {
+            Map<Integer, double[]> out = new HashMap<>();
+            if (ids.isEmpty()) return out;
+            String column = byCustomer ? "customer_id" : "pet_id";
+            StringBuilder sql = new StringBuilder("SELECT ").append(column).append(", SUM(quantity), SUM(total_price) FROM sales WHERE ")
+                    .append(column).append(" IN (");
+            for (int i = 0; i < ids.size(); i++) sql.append(i == 0 ? "?" : ",?");
+            sql.append(") AND sale_date >= ? AND sale_date < ? GROUP BY ").append(column);
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(sql.toString())) {
+                int p = 1;
+                for (int id : ids) ps.setInt(p++, id);
+                ps.setTimestamp(p++, new Timestamp(Math.max(fromMillis, 0)));
+                ps.setTimestamp(p, new Timestamp(Math.min(toMillis, MAX_TIMESTAMP_MILLIS)));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.put(rs.getInt(1), new double[] {rs.getLong(2), rs.getDouble(3)});
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public Sale findById(int id) throws SQLException {
+            FieldSet f = FieldSet.ALL_SALES;
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(f.select(
+                         "FROM sales s JOIN pets p ON s.pet_id = p.id JOIN customers c ON s.customer_id = c.id WHERE s.id = ?"))) {
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? read(rs, f) : null;
+                }
+            }
+        }
+
+        private static Sale read(ResultSet rs, FieldSet f) throws SQLException {
+            return new Sale(
+                    f.has(FieldSet.SALE_ID) ? rs.getInt("id") : 0,
+                    rs.getInt("pet_id"),
+                    rs.getInt("customer_id"),
+                    f.has(FieldSet.SALE_QUANTITY) ? rs.getInt("quantity") : 0,
+                    f.has(FieldSet.SALE_TOTAL) ? rs.getDouble("total_price") : 0.0,
+                    f.has(FieldSet.SALE_DATE) ? rs.getTimestamp("sale_date") : null,
+                    f.has(FieldSet.SALE_PET_NAME) ? rs.getString("pet_name") : null,
+                    f.has(FieldSet.SALE_PET_SPECIES) ? rs.getString("pet_species") : null,
+                    f.has(FieldSet.SALE_PET_BREED) ? rs.getString("pet_breed") : null,
+                    f.has(FieldSet.SALE_CUSTOMER_NAME) ? rs.getString("customer_name") : null,
+                    f.has(FieldSet.SALE_CUSTOMER_PHONE) ? rs.getString("customer_phone") : null);
+        }
+
+        @Override
+        public int checkout(int petId, int customerId, int quantity, double totalPrice, String idempotencyKey) throws SQLException {
+            try (Connection c = DBConnection.getConnection()) {
+                try {
+                    c.setAutoCommit(false);
+                    // check stock
+                    int stock;
+                    try (PreparedStatement ps1 = c.prepareStatement("SELECT quantity FROM pets WHERE id = ? FOR UPDATE")) {
+                        ps1.setInt(1, petId);
+                        try (ResultSet rs = ps1.executeQuery()) {
+                            if (!rs.next()) throw new SQLException("Pet not found");
+                            stock = rs.getInt("quantity");
+                        }
+                    }
+                    if (stock < quantity) throw new SQLException("Not enough stock");
+
+                    // sales has no foreign keys; the shared lock keeps the customer until we commit
+                    try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM customers WHERE id = ? FOR SHARE")) {
+                        ps.setInt(1, customerId);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            if (!rs.next()) throw new SQLException("Customer not found");
+                        }
+                    }
+
+                    // update stock
+                    try (PreparedStatement ps2 = c.prepareStatement("UPDATE pets SET quantity = ? WHERE id = ?")) {
+                        ps2.setInt(1, stock - quantity);
+                        ps2.setInt(2, petId);
+                        ps2.executeUpdate();
+                    }
+
+                    // insert sale
+                    int id;
+                    try (PreparedStatement ps3 = c.prepareStatement(
+                            "INSERT INTO sales (pet_id, customer_id, quantity, total_price) VALUES (?, ?, ?, ?)",
+                            Statement.RETURN_GENERATED_KEYS)) {
+                        ps3.setInt(1, petId);
+                        ps3.setInt(2, customerId);
+                        ps3.setInt(3, quantity);
+                        ps3.setDouble(4, totalPrice);
+                        ps3.executeUpdate();
+                        id = generatedId(ps3);
+                    }
+
+                    // a repeated key fails here on the primary key and rolls the whole sale back
+                    if (idempotencyKey != null) {
+                        try (PreparedStatement ps4 = c.prepareStatement("INSERT INTO sale_requests (idempotency_key, sale_id) VALUES (?, ?)")) {
+                            ps4.setString(1, idempotencyKey);
+                            ps4.setInt(2, id);
+                            ps4.executeUpdate();
+                        }
+                    }
+
+                    // no version stamp: the change_versions row lock would serialize every sale behind
+                    // this transaction's pet lock; stock from sales is left out of delta sync
+                    c.commit();
+                    return id;
+                } catch (SQLException err) {
+                    c.rollback();
+                    throw err;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+            }
+        }
+
+        @Override
+        public Integer saleForKey(String idempotencyKey) throws SQLException {
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement("SELECT sale_id FROM sale_requests WHERE idempotency_key = ?")) {
+                ps.setString(1, idempotencyKey);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : null;
+                }
+            }
+        }
+
+        @Override
+        public void scan(RowVisitor visitor) throws SQLException {
+            SalesArchive archive = archive();
+            for (YearMonth m : archive.monthsToRead(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                archive.read(m, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+            }
+            try (Connection c = DBConnection.getConnection();
+                 PreparedStatement ps = c.prepareStatement(
+                         "SELECT id, pet_id, customer_id, quantity, total_price, sale_date FROM sales ORDER BY sale_date",
+                         ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                // MySQL Connector/J streams row by row only with this fetch size
+                ps.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        visitor.row(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getDouble(5),
+                                rs.getTimestamp(6).getTime());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 public class MainMenu extends JFrame {
 
@@ -45,10 +46,31 @@ public class MainMenu extends JFrame {
             }
         }
 
+        // Sales made at the till wait here until the server has them
+        JLabel outboxLabel = new JLabel(" ");
+        outboxLabel.setFont(new Font("Arial", Font.PLAIN, 14));
+        gbc.gridx = 0;
+        gbc.gridy = row + 1;
+        gbc.gridwidth = 2;
+        mainPanel.add(outboxLabel, gbc);
+        try {
+            SaleOutbox outbox = SaleOutbox.shared();
+            outbox.addListener((pending, failed) -> SwingUtilities.invokeLater(() -> showOutbox(outboxLabel, pending, failed)));
+            showOutbox(outboxLabel, outbox.pendingCount(), outbox.failedCount());
+        } catch (IOException ex) {
+            outboxLabel.setText("Sales outbox unavailable: " + ex.getMessage());
+            outboxLabel.setForeground(Color.RED);
+        }
+
         add(mainPanel);
         setVisible(true);
     }
 
+    private static void showOutbox(JLabel label, int pending, int failed) {
+        label.setText("Sales outbox: " + pending + " pending, " + failed + " failed");
+        label.setForeground(failed > 0 ? Color.RED : new Color(0, 102, 0));
+    }
+
     private JButton createStyledButton(String text) {
         JButton button = new JButton(text);
         button.setFont(new Font("Arial", Font.BOLD, 16));
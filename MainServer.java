@@ -1,42 +1,390 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.sql.SQLTimeoutException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Minimal REST server for the PetShop application.
  *
  * - Uses the JDK HttpServer (no external dependencies).
- * - Uses `DBConnection.getConnection()` to access MySQL.
- * - Exposes endpoints under /api for pets, customers and sales.
+ * - Reads and writes through {@link Repositories} (MySQL by default, in-memory with PETSHOP_STORE=memory),
+ *   always on a {@link DbExecutor} bulkhead so reports cannot starve checkout.
+ * - Starts in phases (connections, schema migrations, catalog snapshot, analytics, sales feed, JIT
+ *   warm-up) and only then reports ready on /health/ready.
+ * - Exposes endpoints under /api for pets, customers, sales and stock holds; list endpoints answer in CBOR
+ *   ({@link ShopCbor}) instead of JSON when the request has Accept: application/cbor.
+ * - Serves every store in {@link DBConnection#stores()}: each request works on one store's database
+ *   and in-memory state ({@link Store}), and /api/chain queries all stores at once.
  *
  * NOTE: This is a small convenience server for local development only.
  */
 public class MainServer {
+    // Per-route concurrency limits; sheds load with 503 before requests pile up behind MySQL
+    static final AdmissionController ADMISSION = new AdmissionController();
+    // Bulkheaded executors that run all repository work; one per admission route class
+    static final DbExecutor DB = new DbExecutor();
+    // Handlers that run outside admission at the same time: admin endpoints, batch parents, preflights
+    private static final int UNADMITTED_HANDLERS = 32;
+    // Answers requests HANDLER_POOL has no thread for with 503 (see context); when even its queue is
+    // full the server closes the connection. Never runs a real handler, so two threads keep up.
+    private static final ThreadLocal<Boolean> SHEDDING = ThreadLocal.withInitial(() -> false);
+    static final ThreadPoolExecutor OVERFLOW_POOL = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1024), r -> daemon(() -> {
+                SHEDDING.set(true);
+                r.run();
+            }, "handler-overflow"));
+    // Runs HTTP handlers. Handlers block on JDBC and in admission queues, so there is a thread for every
+    // request admission can hold in flight or parked; the admission limits decide how many actually run.
+    // The HttpServer dispatcher never runs a handler itself: past this pool, requests go to OVERFLOW_POOL.
+    static final ThreadPoolExecutor HANDLER_POOL = new ThreadPoolExecutor(8, ADMISSION.capacity() + UNADMITTED_HANDLERS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), (r, pool) -> OVERFLOW_POOL.execute(r));
+    // The concurrent reads of a batch. Its tasks never wait on one another, so a fixed pool cannot
+    // deadlock; the batch's own thread runs the last read of each run.
+    static final ExecutorService BATCH_READ_POOL = Executors.newFixedThreadPool(16, r -> daemon(r, "batch-read"));
+    // Concurrent identical GETs share one query and one encoded response
+    static final SingleFlight FLIGHTS = new SingleFlight();
+    // Change notices to and from other instances; null unless PETSHOP_BUS_PORT is set
+    static InvalidationBus BUS;
+    static final long HOLD_TTL_SECONDS = Long.parseLong(getenvOrDefault("PETSHOP_HOLD_TTL_SECONDS", "300"));
+    // Counters per top-N board; items above 1/n of a window's sales are always tracked
+    static final int TOP_COUNTERS = Integer.parseInt(getenvOrDefault("PETSHOP_TOP_COUNTERS", "200"));
+    // Sales partitions that ended this many months ago move to JdbcRepositories.ARCHIVE; 0 keeps everything live
+    static final int ARCHIVE_MONTHS = Integer.parseInt(getenvOrDefault("PETSHOP_ARCHIVE_MONTHS", "12"));
+    // Full pet / customer lists; TTL 0 disables the cache and list endpoints query the repository directly
+    static final long CATALOG_TTL_SECONDS = Long.parseLong(getenvOrDefault("PETSHOP_CACHE_TTL_SECONDS", "30"));
+    static final Path CATALOG_SNAPSHOT = Paths.get(getenvOrDefault("PETSHOP_CACHE_FILE", "petshop-cache.bin"));
+
+    /**
+     * What this server keeps in memory about one store's database. Requests name their store with
+     * ?store= or an X-Store-Id header (the first store otherwise); see {@link #routed}.
+     */
+    static class Store {
+        final String id;
+        // Column store behind /api/sales/analytics; fed by SalesHandler.handleCreate
+        final SalesAnalytics analytics = new SalesAnalytics();
+        // Pre-encoded GET /api/sales body, extended as sales commit
+        final SalesFeed salesFeed = new SalesFeed();
+        // Stock set aside between choosing a pet and paying; see HoldsHandler
+        final StockHolds holds = new StockHolds();
+        // Streaming day / week / month leaderboards behind /api/sales/top; fed like analytics
+        final TopSellers topSellers = new TopSellers(TOP_COUNTERS);
+        // Full pet / customer lists; TTL 0 disables the cache and list endpoints query the repository directly
+        final CatalogCache catalog = new CatalogCache(CATALOG_TTL_SECONDS);
+        final Path catalogSnapshot;
+
+        Store(String id, boolean only) {
+            this.id = id;
+            // with several stores: petshop-cache-<store>.bin
+            String file = CATALOG_SNAPSHOT.getFileName().toString();
+            int dot = file.lastIndexOf('.');
+            this.catalogSnapshot = only ? CATALOG_SNAPSHOT
+                    : CATALOG_SNAPSHOT.resolveSibling(dot < 0 ? file + "-" + id : file.substring(0, dot) + "-" + id + file.substring(dot));
+        }
+
+        // " for store x" in startup messages, when there is more than one
+        String label() {
+            return STORES.size() > 1 ? " for store " + id : "";
+        }
+    }
+
+    // store id -> its state, in DBConnection.stores() order
+    static final Map<String, Store> STORES = new LinkedHashMap<>();
+
+    static {
+        for (String id : DBConnection.stores()) STORES.put(id, new Store(id, DBConnection.stores().size() == 1));
+    }
+
+    /** The state of the store the current thread works on. */
+    static Store store() {
+        return STORES.get(DBConnection.currentStore());
+    }
+
+    // Flipped by main() once startup and warm-up are done; reported by /health/ready
+    private static volatile boolean ready;
+    private static final Map<String, Long> STARTUP_PHASES = Collections.synchronizedMap(new LinkedHashMap<>());
+
     public static void main(String[] args) throws Exception {
-        int port = 8000;
+        int port = Integer.parseInt(getenvOrDefault("PETSHOP_PORT", "8000"));
+        long started = System.nanoTime();
+
+        if (Repositories.isJdbc()) {
+            int pooled = phase("connections", () -> DBConnection.prewarm(Integer.parseInt(getenvOrDefault("PETSHOP_PREWARM_CONNECTIONS", "4"))));
+            System.out.println("Pre-opened " + pooled + " database connections");
+            if (Boolean.parseBoolean(getenvOrDefault("PETSHOP_MIGRATE", "true"))) {
+                phase("migrations", () -> forEachStore(s -> {
+                    int applied = SchemaMigrations.migrate();
+                    System.out.println("Schema" + s.label() + " at version " + SchemaMigrations.currentVersion() + " (" + applied + " migrations applied)");
+                }));
+            }
+        }
+        if (CATALOG_TTL_SECONDS > 0) {
+            phase("catalog", () -> forEachStore(s -> {
+                int restored = s.catalog.restoreSnapshot(s.catalogSnapshot);
+                if (restored >= 0) {
+                    System.out.println("Restored " + restored + " catalog rows from " + s.catalogSnapshot);
+                } else {
+                    int loaded = s.catalog.pets().size() + s.catalog.customers().size();
+                    System.out.println("Catalog snapshot" + s.label() + " missing or stale; loaded " + loaded + " rows from the database");
+                }
+            }));
+        }
+        phase("analytics", () -> forEachStore(s -> {
+            s.analytics.bootstrap(Repositories.sales());
+            System.out.println("Loaded " + s.analytics.rowCount() + " sales into the analytics store" + s.label());
+        }));
+        phase("top-sellers", () -> forEachStore(s -> s.topSellers.bootstrap(Repositories.sales())));
+        phase("sales-feed", () -> forEachStore(s -> {
+            s.salesFeed.reload(Repositories.sales());
+            System.out.println("Materialized " + s.salesFeed.size() + " sales into the sales feed" + s.label());
+        }));
+
+        String busPort = System.getenv("PETSHOP_BUS_PORT");
+        if (busPort != null && !busPort.isEmpty()) {
+            BUS = new InvalidationBus(Integer.parseInt(busPort), System.getenv("PETSHOP_BUS_PEERS"),
+                    Long.parseLong(getenvOrDefault("PETSHOP_BUS_FLUSH_MS", "20")), new BusListener());
+            BUS.start();
+            System.out.println("Invalidation bus listening on port " + busPort);
+        }
+
+        // Without TCP_NODELAY, keep-alive clients wait out a delayed ACK (~40 ms) between the header
+        // and body writes of every response.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
-        server.createContext("/api/pets", new PetsHandler());
-        server.createContext("/api/customers", new CustomersHandler());
-        server.createContext("/api/sales", new SalesHandler());
+        Map<String, HttpHandler> routes = new LinkedHashMap<>();
+        routes.put("/api/pets", routed(ADMISSION.wrap(new PetsHandler())));
+        routes.put("/api/customers", routed(ADMISSION.wrap(new CustomersHandler())));
+        routes.put("/api/sales", routed(ADMISSION.wrap(new SalesHandler())));
+        routes.put("/api/holds", routed(ADMISSION.wrap(new HoldsHandler())));
+        for (Map.Entry<String, HttpHandler> r : routes.entrySet()) context(server, r.getKey(), r.getValue());
+        // sub-requests are admitted one by one through the handlers above
+        context(server, "/api/batch", routed(new BatchHandler(routes)));
+        context(server, "/api/chain", ADMISSION.wrap(new ChainHandler()));
+        context(server, "/api/admin/admission", ex -> writeJson(ex, 200, ADMISSION.snapshot()));
+        context(server, "/api/admin/db", ex -> writeJson(ex, 200, DB.snapshot()));
+        context(server, "/api/admin/coalescing", ex -> writeJson(ex, 200, FLIGHTS.snapshot()));
+        context(server, "/api/admin/slow-queries", ex -> {
+            int limit;
+            try {
+                limit = Integer.parseInt(parseQuery(ex).getOrDefault("limit", "20"));
+            } catch (NumberFormatException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid limit\"}");
+                return;
+            }
+            writeJson(ex, 200, SlowQueryLog.snapshot(limit));
+        });
+        context(server, "/api/admin/holds", routed(ex -> writeJson(ex, 200, store().holds.snapshot())));
+        context(server, "/api/admin/top-sellers", routed(ex -> writeJson(ex, 200, store().topSellers.snapshot())));
+        context(server, "/api/admin/bus", ex -> writeJson(ex, 200, BUS == null ? "{\"enabled\":false}" : BUS.snapshot()));
+        context(server, "/api/admin/archive", routed(ex -> writeJson(ex, 200,
+                Repositories.isJdbc() ? JdbcRepositories.archive().snapshot() : "{\"enabled\":false}")));
+        context(server, "/health/ready", MainServer::handleReady);
 
-        server.setExecutor(null);
+        server.setExecutor(HANDLER_POOL);
         System.out.println("Starting PetShop REST server on http://localhost:" + port);
         server.start();
+
+        if (Repositories.isJdbc()) {
+            long interval = Long.parseLong(getenvOrDefault("PETSHOP_ARCHIVE_INTERVAL_MINUTES", "60"));
+            // archived months leave the live table, so the feed (which mirrors it) drops them everywhere;
+            // the callback runs on the archive's thread, which works on that archive's store
+            forEachStore(s -> JdbcRepositories.archive().start(ARCHIVE_MONTHS, interval, () -> {
+                try {
+                    s.salesFeed.dropBefore(JdbcRepositories.archive().liveFromMillis());
+                } catch (IOException e) {
+                    System.err.println("Could not trim the sales feed" + s.label() + " after archiving: " + e.getMessage());
+                }
+                publish(InvalidationBus.Kind.SALE, 0);
+            }));
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            DB.shutdown();
+            if (BUS != null) BUS.stop();
+            for (Store s : STORES.values()) {
+                try {
+                    DBConnection.useStore(s.id);
+                    if (Repositories.isJdbc()) JdbcRepositories.archive().stop();
+                    if (CATALOG_TTL_SECONDS > 0) s.catalog.writeSnapshot(s.catalogSnapshot);
+                } catch (IOException | SQLException e) {
+                    System.err.println("Could not write catalog snapshot" + s.label() + ": " + e.getMessage());
+                }
+            }
+        }));
+
+        int warmup = Integer.parseInt(getenvOrDefault("PETSHOP_WARMUP_REQUESTS", "200"));
+        phase("warm-up", () -> {
+            warmUp(port, warmup);
+            return null;
+        });
+        STARTUP_PHASES.put("total", (System.nanoTime() - started) / 1_000_000);
+        ready = true;
+        System.out.println("Ready; startup phases (ms): " + STARTUP_PHASES);
+    }
+
+    private interface Phase<T> {
+        T run() throws Exception;
+    }
+
+    private interface StoreStep {
+        void run(Store s) throws Exception;
+    }
+
+    // Runs a step once per store, with the current thread pointed at that store; returns null so it can be a phase
+    private static Void forEachStore(StoreStep step) throws Exception {
+        String previous = DBConnection.currentStore();
+        try {
+            for (Store s : STORES.values()) {
+                DBConnection.useStore(s.id);
+                step.run(s);
+            }
+        } finally {
+            DBConnection.useStore(previous);
+        }
+        return null;
+    }
+
+    // Registers a handler that sheds the request with 503 when it landed on OVERFLOW_POOL
+    private static void context(HttpServer server, String path, HttpHandler handler) {
+        server.createContext(path, ex -> {
+            if (SHEDDING.get()) ADMISSION.shed(ex);
+            else handler.handle(ex);
+        });
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // Runs the request on the store it names: ?store=, else the X-Store-Id header, else the first store
+    private static HttpHandler routed(HttpHandler handler) {
+        return ex -> {
+            String id = parseQuery(ex).get("store");
+            if (id == null || id.isEmpty()) id = ex.getRequestHeaders().getFirst("X-Store-Id");
+            if (id == null || id.isEmpty()) id = DBConnection.stores().get(0);
+            if (!DBConnection.isStore(id)) {
+                writeJson(ex, 404, "{\"error\": \"Unknown store: " + jsonEscape(id) + "\"}");
+                return;
+            }
+            String previous = DBConnection.useStore(id);
+            try {
+                handler.handle(ex);
+            } finally {
+                DBConnection.useStore(previous);
+            }
+        };
+    }
+
+    private interface StoreCall<T> {
+        T call(Store s) throws SQLException;
+    }
+
+    // Runs `call` for every store at once, each on that store's own `workload` bulkhead, and returns the
+    // results in store order. A store that fails or is saturated goes into `errors` (store -> message)
+    // instead of failing the whole request.
+    private static <T> Map<String, T> fanOut(AdmissionController.RouteClass workload, StoreCall<T> call, Map<String, String> errors) {
+        Map<String, CompletableFuture<T>> pending = new LinkedHashMap<>();
+        for (Store s : STORES.values()) pending.put(s.id, DB.submit(s.id, workload, () -> call.call(s)));
+        Map<String, T> results = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<T>> e : pending.entrySet()) {
+            try {
+                results.put(e.getKey(), DbExecutor.await(e.getValue()));
+            } catch (SQLException | RuntimeException err) {
+                errors.put(e.getKey(), String.valueOf(err.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    // Runs one startup step and records how long it took
+    private static <T> T phase(String name, Phase<T> step) throws Exception {
+        long t0 = System.nanoTime();
+        try {
+            return step.run();
+        } finally {
+            STARTUP_PHASES.put(name, (System.nanoTime() - t0) / 1_000_000);
+        }
+    }
+
+    // Drives the read endpoints through the real handlers so the JIT compiles the hot paths
+    // (routing, repositories, serializers) before the load balancer sends traffic.
+    private static void warmUp(int port, int requests) throws IOException {
+        String base = "http://localhost:" + port;
+        String[] paths = {"/api/pets", "/api/customers", "/api/sales", "/api/pets?fields=id,name,price,stock",
+                "/api/customers?fields=id,name,phone", "/api/sales?fields=id,total_price,sale_date", "/api/sales/analytics?group=month"};
+        byte[] sink = new byte[8192];
+        for (int i = 0; i < requests; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL(base + paths[i % paths.length]).openConnection();
+            try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                while (in != null && in.read(sink) >= 0) {
+                    // drain so the connection can be reused
+                }
+            }
+        }
+    }
+
+    private static void handleReady(HttpExchange ex) throws IOException {
+        StringBuilder phases = new StringBuilder("{");
+        synchronized (STARTUP_PHASES) {
+            for (Map.Entry<String, Long> e : STARTUP_PHASES.entrySet()) {
+                if (phases.length() > 1) phases.append(',');
+                phases.append('"').append(e.getKey()).append("\":").append(e.getValue());
+            }
+        }
+        phases.append('}');
+        if (ready) writeJson(ex, 200, "{\"status\":\"ready\",\"phases_ms\":" + phases + "}");
+        else writeJson(ex, 503, "{\"status\":\"starting\",\"phases_ms\":" + phases + "}");
+    }
+
+    private static String getenvOrDefault(String key, String def) {
+        String v = System.getenv(key);
+        return (v != null && !v.isEmpty()) ? v : def;
     }
 
     // ---------- Helpers ----------
@@ -86,24 +434,235 @@ public class MainServer {
         return m;
     }
 
+    // Decodes the URL query string into a map (last value wins for repeated keys)
+    private static Map<String, String> parseQuery(HttpExchange ex) {
+        Map<String, String> m = new HashMap<>();
+        String q = ex.getRequestURI().getRawQuery();
+        if (q == null || q.isEmpty()) return m;
+        for (String pair : q.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String val = eq < 0 ? "" : pair.substring(eq + 1);
+            m.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(val, StandardCharsets.UTF_8));
+        }
+        return m;
+    }
+
     private static String jsonEscape(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return ShopJson.escape(s);
+    }
+
+    // Parses ?fields= for the resource; on an unknown field writes 400 and returns null
+    private static FieldSet requestedFields(HttpExchange ex, String resource) throws IOException {
+        try {
+            return FieldSet.parse(resource, parseQuery(ex).get("fields"));
+        } catch (IllegalArgumentException e) {
+            writeJson(ex, 400, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+            return null;
+        }
+    }
+
+    // Parses ?since= for a delta listing, which needs the id field to apply; on a bad value writes 400 and returns -1
+    private static long requestedSince(HttpExchange ex, FieldSet fields, int idBit) throws IOException {
+        long since;
+        try {
+            since = Long.parseLong(parseQuery(ex).get("since"));
+        } catch (NumberFormatException e) {
+            since = -1;
+        }
+        if (since < 0) {
+            writeJson(ex, 400, "{\"error\": \"Invalid since\"}");
+            return -1;
+        }
+        if (!fields.has(idBit)) {
+            writeJson(ex, 400, "{\"error\": \"?since= needs the id field\"}");
+            return -1;
+        }
+        return since;
+    }
+
+    // {"version": n, "full": false, "changed": <changedJson>, "deleted": [ids]}
+    private static String changesJson(ChangeSet<?> changes, String changedJson) {
+        StringBuilder sb = new StringBuilder("{\"version\":").append(changes.version)
+                .append(",\"full\":").append(changes.full)
+                .append(",\"changed\":").append(changedJson)
+                .append(",\"deleted\":[");
+        for (int i = 0; i < changes.deleted.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(changes.deleted.get(i));
+        }
+        return sb.append("]}").toString();
     }
 
     private static void writeJson(HttpExchange ex, int status, String body) throws IOException {
+        writeJson(ex, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeJson(HttpExchange ex, int status, byte[] bytes) throws IOException {
         ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
         // Allow CORS from dev frontends
         ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
-        byte[] bytes = body.getBytes("utf-8");
+        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
         ex.sendResponseHeaders(status, bytes.length);
         try (OutputStream os = ex.getResponseBody()) {
             os.write(bytes);
         }
     }
 
+    // Writes '[' + bytes + ']' without copying the (possibly large) shared buffer
+    private static void writeJsonArray(HttpExchange ex, byte[] buf, int offset, int length) throws IOException {
+        ex.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
+        ex.sendResponseHeaders(200, length + 2);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write('[');
+            os.write(buf, offset, length);
+            os.write(']');
+        }
+    }
+
+    // Runs repository work on the bulkhead of this request's workload class and waits for the result
+    private static <T> T db(HttpExchange ex, DbExecutor.SqlCall<T> call) throws SQLException {
+        // already on a bulkhead: run here rather than wait for a second thread
+        if (DbExecutor.onWorkerThread()) return call.call();
+        AdmissionController.RouteClass workload = AdmissionController.classify(ex.getRequestMethod(), ex.getRequestURI().getPath());
+        return DbExecutor.await(DB.submit(workload, call));
+    }
+
+    // Full bulkhead or timed-out query: tell the client to retry instead of reporting a server error
+    private static void writeUnavailable(HttpExchange ex, Exception e) throws IOException {
+        ex.getResponseHeaders().add("Retry-After", "1");
+        writeJson(ex, 503, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+    }
+
+    // Coalescing key for a read: store, route, query string and response encoding
+    private static String flightKey(HttpExchange ex) {
+        String query = ex.getRequestURI().getRawQuery();
+        return DBConnection.currentStore() + ":" + ex.getRequestURI().getPath() + "?" + (query == null ? "" : query) + (wantsCbor(ex) ? "#cbor" : "#json");
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // True when the client asked for the binary list encoding (Accept: application/cbor)
+    private static boolean wantsCbor(HttpExchange ex) {
+        String accept = ex.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(ShopCbor.MEDIA_TYPE);
+    }
+
+    private static void writeCbor(HttpExchange ex, byte[] body) throws IOException {
+        ex.getResponseHeaders().add("Content-Type", ShopCbor.MEDIA_TYPE);
+        ex.getResponseHeaders().add("Vary", "Accept");
+        ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // ---------- Change hooks ----------
+    // Called after a pet row was written through this server, so in-memory views stay in step.
+    private static void petChanged(int id, Collection<String> columns, boolean deleted) throws SQLException {
+        store().catalog.invalidatePets();
+        publish(InvalidationBus.Kind.PET, id);
+        if (deleted) {
+            store().salesFeed.petChanged(id, null);
+        } else if (columns.contains("name") || columns.contains("species") || columns.contains("breed")) {
+            store().salesFeed.petChanged(id, Repositories.pets().findById(id));
+        }
+    }
+
+    private static void customerChanged(int id, Collection<String> columns, boolean deleted) throws SQLException {
+        store().catalog.invalidateCustomers();
+        publish(InvalidationBus.Kind.CUSTOMER, id);
+        if (deleted) {
+            store().salesFeed.customerChanged(id, null);
+        } else if (columns.contains("name") || columns.contains("phone")) {
+            store().salesFeed.customerChanged(id, Repositories.customers().findById(id));
+        }
+    }
+
+    private static void saleCreated(int saleId, int petId, int customerId, int qty, double total) throws SQLException {
+        store().catalog.invalidatePets(); // stock changed
+        publish(InvalidationBus.Kind.STOCK, petId);
+        publish(InvalidationBus.Kind.SALE, saleId);
+        store().analytics.append(saleId, petId, customerId, qty, total, store().analytics.epochDay(System.currentTimeMillis()));
+        store().topSellers.record(saleId, petId, customerId, qty, total, System.currentTimeMillis());
+        Sale sale = saleId > 0 ? Repositories.sales().findById(saleId) : null;
+        if (sale != null) store().salesFeed.append(sale);
+        else store().salesFeed.reload(Repositories.sales());
+    }
+
+    private static void publish(InvalidationBus.Kind kind, int id) {
+        if (BUS != null) BUS.publish(DBConnection.currentStore(), kind, id);
+    }
+
+    // Applies notices about writes handled by other instances to this instance's caches
+    static class BusListener implements InvalidationBus.Listener {
+        @Override
+        public void changed(String storeId, InvalidationBus.Kind kind, int id) throws SQLException {
+            if (!DBConnection.isStore(storeId)) return; // a store this instance does not serve
+            String previous = DBConnection.useStore(storeId);
+            try {
+                apply(kind, id);
+            } finally {
+                DBConnection.useStore(previous);
+            }
+        }
+
+        private void apply(InvalidationBus.Kind kind, int id) throws SQLException {
+            switch (kind) {
+                case PET:
+                    store().catalog.invalidatePets();
+                    // re-read rather than trust the notice: null (deleted) drops the pet's sales
+                    if (id > 0) store().salesFeed.petChanged(id, Repositories.pets().findById(id));
+                    break;
+                case CUSTOMER:
+                    store().catalog.invalidateCustomers();
+                    if (id > 0) store().salesFeed.customerChanged(id, Repositories.customers().findById(id));
+                    break;
+                case STOCK:
+                    store().catalog.invalidatePets();
+                    break;
+                case SALE:
+                    if (id == 0) {
+                        // another instance archived old partitions
+                        try {
+                            store().salesFeed.dropBefore(JdbcRepositories.archive().liveFromMillis());
+                        } catch (IOException e) {
+                            throw new SQLException("Could not list the sales archive: " + e.getMessage(), e);
+                        }
+                        break;
+                    }
+                    Sale sale = Repositories.sales().findById(id);
+                    if (sale == null) break;
+                    store().analytics.append(sale.id, sale.petId, sale.customerId, sale.quantity, sale.totalPrice,
+                            store().analytics.epochDay(sale.saleDate.getTime()));
+                    store().topSellers.record(sale.id, sale.petId, sale.customerId, sale.quantity, sale.totalPrice, sale.saleDate.getTime());
+                    store().salesFeed.append(sale);
+                    break;
+            }
+        }
+
+        @Override
+        public void resync() throws Exception {
+            forEachStore(s -> {
+                s.catalog.invalidatePets();
+                s.catalog.invalidateCustomers();
+                s.analytics.bootstrap(Repositories.sales());
+                s.topSellers.bootstrap(Repositories.sales());
+                s.salesFeed.reload(Repositories.sales());
+            });
+        }
+    }
+
     // ---------- Pets Handler ----------
     static class PetsHandler implements HttpHandler {
         @Override
@@ -111,8 +670,8 @@ public class MainServer {
             // Handle CORS preflight
             if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
                 ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-                ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+                ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+                ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
                 ex.sendResponseHeaders(204, -1);
                 return;
             }
@@ -123,15 +682,21 @@ public class MainServer {
             try {
                 if ("GET".equalsIgnoreCase(method) && parts.length == 3) {
                     handleList(ex);
+                } else if ("GET".equalsIgnoreCase(method) && parts.length == 4) {
+                    handleGet(ex, parts[3]);
                 } else if ("POST".equalsIgnoreCase(method) && parts.length == 3) {
                     handleCreate(ex);
                 } else if ("PUT".equalsIgnoreCase(method) && parts.length == 4) {
                     handleUpdate(ex, parts[3]);
+                } else if ("PATCH".equalsIgnoreCase(method) && parts.length == 3) {
+                    handleBulkUpdate(ex);
                 } else if ("DELETE".equalsIgnoreCase(method) && parts.length == 4) {
                     handleDelete(ex, parts[3]);
                 } else {
                     writeJson(ex, 404, "{\"error\": \"Not found\"}");
                 }
+            } catch (RejectedExecutionException | SQLTimeoutException e) {
+                writeUnavailable(ex, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
@@ -139,27 +704,47 @@ public class MainServer {
         }
 
         private void handleList(HttpExchange ex) throws SQLException, IOException {
-            List<String> items = new ArrayList<>();
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("SELECT id, name, species, breed, age, price, quantity FROM pets ORDER BY created_at DESC");
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) {
-                    int id = rs.getInt("id");
-                    String name = rs.getString("name");
-                    String species = rs.getString("species");
-                    String breed = rs.getString("breed");
-                    int age = rs.getInt("age");
-                    double price = rs.getDouble("price");
-                    int quantity = rs.getInt("quantity");
-                    String json = String.format("{\"id\":%d,\"name\":\"%s\",\"species\":\"%s\",\"breed\":\"%s\",\"age\":%d,\"price\":%.2f,\"stock\":%d}",
-                            id, jsonEscape(name), jsonEscape(species), jsonEscape(breed), age, price, quantity);
-                    items.add(json);
-                }
+            FieldSet fields = requestedFields(ex, FieldSet.PETS);
+            if (fields == null) return;
+            if (parseQuery(ex).containsKey("since")) {
+                handleChanges(ex, fields);
+                return;
             }
-            String body = "[" + String.join(",", items) + "]";
+            boolean cbor = wantsCbor(ex);
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                List<Pet> pets = db(ex, () -> CATALOG_TTL_SECONDS > 0 ? store().catalog.pets() : Repositories.pets().findAll(fields));
+                return cbor ? ShopCbor.pets(pets, fields, store().holds::held) : ShopJson.petsUtf8(pets, fields, store().holds::held);
+            });
+            if (cbor) writeCbor(ex, body);
+            else writeJson(ex, 200, body);
+        }
+
+        // GET /api/pets?since=<version>  -> {"version": n, "full": false, "changed": [pets], "deleted": [ids]}
+        private void handleChanges(HttpExchange ex, FieldSet fields) throws SQLException, IOException {
+            long since = requestedSince(ex, fields, FieldSet.PET_ID);
+            if (since < 0) return;
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                ChangeSet<Pet> changes = db(ex, () -> Repositories.pets().changesSince(since, fields));
+                return utf8(changesJson(changes, ShopJson.pets(changes.changed, fields, store().holds::held)));
+            });
             writeJson(ex, 200, body);
         }
 
+        private void handleGet(HttpExchange ex, String idStr) throws SQLException, IOException {
+            int id = Integer.parseInt(idStr);
+            FieldSet fields = requestedFields(ex, FieldSet.PETS);
+            if (fields == null) return;
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                Pet p = db(ex, () -> Repositories.pets().findById(id, fields));
+                if (p == null) return null;
+                StringBuilder sb = new StringBuilder();
+                ShopJson.pet(sb, p, fields, store().holds::held);
+                return utf8(sb.toString());
+            });
+            if (body == null) writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            else writeJson(ex, 200, body);
+        }
+
         private void handleCreate(HttpExchange ex) throws IOException, SQLException {
             String body = readBody(ex);
             Map<String, String> m = parseJson(body);
@@ -170,16 +755,12 @@ public class MainServer {
             double price = parseDouble(m.get("price"));
             int stock = parseInt(m.get("stock"));
 
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("INSERT INTO pets (name, species, breed, age, price, quantity) VALUES (?, ?, ?, ?, ?, ?)");
-                ps.setString(1, name);
-                ps.setString(2, species);
-                ps.setString(3, breed);
-                if (age > 0) ps.setInt(4, age); else ps.setNull(4, java.sql.Types.INTEGER);
-                ps.setDouble(5, price);
-                ps.setInt(6, stock);
-                ps.executeUpdate();
-            }
+            db(ex, () -> {
+                int id = Repositories.pets().create(new Pet(0, name, species, breed, age, price, stock));
+                // a new pet has no sales yet, so only the catalog needs to hear about it
+                petChanged(id, Collections.emptySet(), false);
+                return id;
+            });
             writeJson(ex, 201, "{\"status\":\"created\"}");
         }
 
@@ -188,43 +769,113 @@ public class MainServer {
             String body = readBody(ex);
             Map<String, String> m = parseJson(body);
 
-            StringBuilder sql = new StringBuilder("UPDATE pets SET ");
-            List<Object> params = new ArrayList<>();
-            if (m.containsKey("name")) { sql.append("name=?,"); params.add(m.get("name")); }
-            if (m.containsKey("species")) { sql.append("species=?,"); params.add(m.get("species")); }
-            if (m.containsKey("breed")) { sql.append("breed=?,"); params.add(m.get("breed")); }
-            if (m.containsKey("age")) { sql.append("age=?,"); params.add(parseInt(m.get("age"))); }
-            if (m.containsKey("price")) { sql.append("price=?,"); params.add(parseDouble(m.get("price"))); }
-            if (m.containsKey("stock")) { sql.append("quantity=?,"); params.add(parseInt(m.get("stock"))); }
-
-            if (params.isEmpty()) {
+            Map<String, Object> fields = petColumns(m);
+            if (fields.isEmpty()) {
                 writeJson(ex, 400, "{\"error\": \"No updatable fields provided\"}");
                 return;
             }
-            // remove trailing comma
-            sql.setLength(sql.length() - 1);
-            sql.append(" WHERE id=?");
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement(sql.toString());
-                for (int i = 0; i < params.size(); i++) ps.setObject(i + 1, params.get(i));
-                ps.setInt(params.size() + 1, id);
-                int updated = ps.executeUpdate();
-                if (updated == 0) {
-                    writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            boolean updated = db(ex, () -> {
+                if (!Repositories.pets().update(id, fields)) return false;
+                petChanged(id, fields.keySet(), false);
+                return true;
+            });
+            if (!updated) {
+                writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            } else {
+                writeJson(ex, 200, "{\"status\":\"updated\"}");
+            }
+        }
+
+        // Maps API field names to pets columns (stock -> quantity), parsing numeric values
+        private Map<String, Object> petColumns(Map<String, ?> m) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            if (m.containsKey("name")) fields.put("name", str(m.get("name")));
+            if (m.containsKey("species")) fields.put("species", str(m.get("species")));
+            if (m.containsKey("breed")) fields.put("breed", str(m.get("breed")));
+            if (m.containsKey("age")) fields.put("age", parseInt(str(m.get("age"))));
+            if (m.containsKey("price")) fields.put("price", parseDouble(str(m.get("price"))));
+            if (m.containsKey("stock")) fields.put("quantity", parseInt(str(m.get("stock"))));
+            return fields;
+        }
+
+        private String str(Object v) {
+            return v == null ? null : v.toString();
+        }
+
+        // PATCH /api/pets with a JSON array of items, each either
+        //   {"id": 7, "fields": {"price": 12.5, "stock": 3}}   or   {"species": "Dog", "price_percent": -10}
+        // All items run in one transaction; the response lists the outcome of each item in order.
+        @SuppressWarnings("unchecked")
+        private void handleBulkUpdate(HttpExchange ex) throws IOException, SQLException {
+            Object parsed;
+            try {
+                parsed = MiniJson.parse(readBody(ex));
+            } catch (IllegalArgumentException e) {
+                writeJson(ex, 400, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+                return;
+            }
+            if (!(parsed instanceof List) || ((List<Object>) parsed).isEmpty()) {
+                writeJson(ex, 400, "{\"error\": \"Expected a non-empty JSON array of updates\"}");
+                return;
+            }
+            List<Object> raw = (List<Object>) parsed;
+            List<PetBulkItem> items = new ArrayList<>(raw.size());
+            for (int i = 0; i < raw.size(); i++) {
+                Map<String, Object> o = raw.get(i) instanceof Map ? (Map<String, Object>) raw.get(i) : null;
+                PetBulkItem item = null;
+                if (o != null && o.get("species") instanceof String && o.containsKey("price_percent")) {
+                    double percent = parseDouble(str(o.get("price_percent")));
+                    if (percent > -100) item = PetBulkItem.priceAdjustment((String) o.get("species"), percent);
+                } else if (o != null && o.containsKey("id") && o.get("fields") instanceof Map) {
+                    Map<String, Object> fields = petColumns((Map<String, Object>) o.get("fields"));
+                    int id = parseInt(str(o.get("id")));
+                    if (id > 0 && !fields.isEmpty()) item = PetBulkItem.update(id, fields);
+                }
+                if (item == null) {
+                    writeJson(ex, 400, "{\"error\": \"Invalid update at index " + i + "\"}");
+                    return;
+                }
+                items.add(item);
+            }
+
+            int[] counts = db(ex, () -> {
+                int[] c = Repositories.pets().bulkUpdate(items);
+                store().catalog.invalidatePets();
+                for (PetBulkItem item : items) {
+                    // species price adjustments touch rows we did not enumerate
+                    if (item.isAdjustment()) publish(InvalidationBus.Kind.PET, 0);
+                }
+                for (int i = 0; i < items.size(); i++) {
+                    if (!items.get(i).isAdjustment() && c[i] != 0) petChanged(items.get(i).id, items.get(i).fields.keySet(), false);
+                }
+                return c;
+            });
+            StringBuilder sb = new StringBuilder("{\"status\":\"ok\",\"results\":[");
+            for (int i = 0; i < items.size(); i++) {
+                PetBulkItem item = items.get(i);
+                if (i > 0) sb.append(',');
+                if (item.isAdjustment()) {
+                    sb.append("{\"species\":\"").append(jsonEscape(item.species)).append("\",\"updated\":")
+                            .append(Math.max(counts[i], 0)).append('}');
                 } else {
-                    writeJson(ex, 200, "{\"status\":\"updated\"}");
+                    sb.append("{\"id\":").append(item.id).append(",\"status\":\"")
+                            .append(counts[i] == 0 ? "not_found" : "updated").append("\"}");
                 }
             }
+            writeJson(ex, 200, sb.append("]}").toString());
         }
 
         private void handleDelete(HttpExchange ex, String idStr) throws IOException, SQLException {
             int id = Integer.parseInt(idStr);
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("DELETE FROM pets WHERE id = ?");
-                ps.setInt(1, id);
-                int deleted = ps.executeUpdate();
-                if (deleted == 0) writeJson(ex, 404, "{\"error\": \"Not found\"}");
-                else writeJson(ex, 200, "{\"status\":\"deleted\"}");
+            boolean deleted = db(ex, () -> {
+                if (!Repositories.pets().delete(id)) return false;
+                petChanged(id, Collections.emptySet(), true);
+                return true;
+            });
+            if (!deleted) {
+                writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            } else {
+                writeJson(ex, 200, "{\"status\":\"deleted\"}");
             }
         }
 
@@ -247,6 +898,8 @@ public class MainServer {
             try {
                 if ("GET".equalsIgnoreCase(method) && parts.length == 3) {
                     handleList(ex);
+                } else if ("GET".equalsIgnoreCase(method) && parts.length == 4) {
+                    handleGet(ex, parts[3]);
                 } else if ("POST".equalsIgnoreCase(method) && parts.length == 3) {
                     handleCreate(ex);
                 } else if ("PUT".equalsIgnoreCase(method) && parts.length == 4) {
@@ -256,6 +909,8 @@ public class MainServer {
                 } else {
                     writeJson(ex, 404, "{\"error\": \"Not found\"}");
                 }
+            } catch (RejectedExecutionException | SQLTimeoutException e) {
+                writeUnavailable(ex, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
@@ -263,25 +918,47 @@ public class MainServer {
         }
 
         private void handleList(HttpExchange ex) throws SQLException, IOException {
-            List<String> items = new ArrayList<>();
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("SELECT id, name, email, phone, address FROM customers ORDER BY created_at DESC");
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) {
-                    int id = rs.getInt("id");
-                    String name = rs.getString("name");
-                    String email = rs.getString("email");
-                    String phone = rs.getString("phone");
-                    String address = rs.getString("address");
-                    String json = String.format("{\"id\":%d,\"name\":\"%s\",\"email\":\"%s\",\"phone\":\"%s\",\"address\":\"%s\"}",
-                            id, jsonEscape(name), jsonEscape(email), jsonEscape(phone), jsonEscape(address));
-                    items.add(json);
-                }
+            FieldSet fields = requestedFields(ex, FieldSet.CUSTOMERS);
+            if (fields == null) return;
+            if (parseQuery(ex).containsKey("since")) {
+                handleChanges(ex, fields);
+                return;
             }
-            String body = "[" + String.join(",", items) + "]";
+            boolean cbor = wantsCbor(ex);
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                List<Customer> customers = db(ex, () -> CATALOG_TTL_SECONDS > 0 ? store().catalog.customers() : Repositories.customers().findAll(fields));
+                return cbor ? ShopCbor.customers(customers, fields) : ShopJson.customersUtf8(customers, fields);
+            });
+            if (cbor) writeCbor(ex, body);
+            else writeJson(ex, 200, body);
+        }
+
+        // GET /api/customers?since=<version>, shaped like the pets delta
+        private void handleChanges(HttpExchange ex, FieldSet fields) throws SQLException, IOException {
+            long since = requestedSince(ex, fields, FieldSet.CUSTOMER_ID);
+            if (since < 0) return;
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                ChangeSet<Customer> changes = db(ex, () -> Repositories.customers().changesSince(since, fields));
+                return utf8(changesJson(changes, ShopJson.customers(changes.changed, fields)));
+            });
             writeJson(ex, 200, body);
         }
 
+        private void handleGet(HttpExchange ex, String idStr) throws SQLException, IOException {
+            int id = Integer.parseInt(idStr);
+            FieldSet fields = requestedFields(ex, FieldSet.CUSTOMERS);
+            if (fields == null) return;
+            byte[] body = FLIGHTS.run(flightKey(ex), () -> {
+                Customer c = db(ex, () -> Repositories.customers().findById(id, fields));
+                if (c == null) return null;
+                StringBuilder sb = new StringBuilder();
+                ShopJson.customer(sb, c, fields);
+                return utf8(sb.toString());
+            });
+            if (body == null) writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            else writeJson(ex, 200, body);
+        }
+
         private void handleCreate(HttpExchange ex) throws IOException, SQLException {
             String body = readBody(ex);
             Map<String, String> m = parseJson(body);
@@ -290,14 +967,11 @@ public class MainServer {
             String phone = m.getOrDefault("phone", "");
             String address = m.getOrDefault("address", null);
 
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("INSERT INTO customers (name, email, phone, address) VALUES (?, ?, ?, ?)");
-                ps.setString(1, name);
-                ps.setString(2, email);
-                ps.setString(3, phone);
-                ps.setString(4, address);
-                ps.executeUpdate();
-            }
+            db(ex, () -> {
+                int id = Repositories.customers().create(new Customer(0, name, email, phone, address));
+                customerChanged(id, Collections.emptySet(), false);
+                return id;
+            });
             writeJson(ex, 201, "{\"status\":\"created\"}");
         }
 
@@ -306,37 +980,39 @@ public class MainServer {
             String body = readBody(ex);
             Map<String, String> m = parseJson(body);
 
-            StringBuilder sql = new StringBuilder("UPDATE customers SET ");
-            List<Object> params = new ArrayList<>();
-            if (m.containsKey("name")) { sql.append("name=?,"); params.add(m.get("name")); }
-            if (m.containsKey("email")) { sql.append("email=?,"); params.add(m.get("email")); }
-            if (m.containsKey("phone")) { sql.append("phone=?,"); params.add(m.get("phone")); }
-            if (m.containsKey("address")) { sql.append("address=?,"); params.add(m.get("address")); }
+            Map<String, Object> fields = new LinkedHashMap<>();
+            if (m.containsKey("name")) fields.put("name", m.get("name"));
+            if (m.containsKey("email")) fields.put("email", m.get("email"));
+            if (m.containsKey("phone")) fields.put("phone", m.get("phone"));
+            if (m.containsKey("address")) fields.put("address", m.get("address"));
 
-            if (params.isEmpty()) {
+            if (fields.isEmpty()) {
                 writeJson(ex, 400, "{\"error\": \"No updatable fields provided\"}");
                 return;
             }
-            sql.setLength(sql.length() - 1);
-            sql.append(" WHERE id=?");
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement(sql.toString());
-                for (int i = 0; i < params.size(); i++) ps.setObject(i + 1, params.get(i));
-                ps.setInt(params.size() + 1, id);
-                int updated = ps.executeUpdate();
-                if (updated == 0) writeJson(ex, 404, "{\"error\": \"Not found\"}");
-                else writeJson(ex, 200, "{\"status\":\"updated\"}");
+            boolean updated = db(ex, () -> {
+                if (!Repositories.customers().update(id, fields)) return false;
+                customerChanged(id, fields.keySet(), false);
+                return true;
+            });
+            if (!updated) {
+                writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            } else {
+                writeJson(ex, 200, "{\"status\":\"updated\"}");
             }
         }
 
         private void handleDelete(HttpExchange ex, String idStr) throws IOException, SQLException {
             int id = Integer.parseInt(idStr);
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement("DELETE FROM customers WHERE id = ?");
-                ps.setInt(1, id);
-                int deleted = ps.executeUpdate();
-                if (deleted == 0) writeJson(ex, 404, "{\"error\": \"Not found\"}");
-                else writeJson(ex, 200, "{\"status\":\"deleted\"}");
+            boolean deleted = db(ex, () -> {
+                if (!Repositories.customers().delete(id)) return false;
+                customerChanged(id, Collections.emptySet(), true);
+                return true;
+            });
+            if (!deleted) {
+                writeJson(ex, 404, "{\"error\": \"Not found\"}");
+            } else {
+                writeJson(ex, 200, "{\"status\":\"deleted\"}");
             }
         }
     }
@@ -351,44 +1027,63 @@ public class MainServer {
             try {
                 if ("GET".equalsIgnoreCase(method) && parts.length == 3) {
                     handleList(ex);
+                } else if ("GET".equalsIgnoreCase(method) && parts.length == 4 && "analytics".equals(parts[3])) {
+                    handleAnalytics(ex);
+                } else if ("GET".equalsIgnoreCase(method) && parts.length == 4 && "top".equals(parts[3])) {
+                    handleTop(ex);
                 } else if ("POST".equalsIgnoreCase(method) && parts.length == 3) {
                     handleCreate(ex);
                 } else {
                     writeJson(ex, 404, "{\"error\": \"Not found\"}");
                 }
+            } catch (RejectedExecutionException | SQLTimeoutException e) {
+                writeUnavailable(ex, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
             }
         }
 
+        // ?from=YYYY-MM-DD&to=YYYY-MM-DD (both inclusive, either optional) reads only the partitions in
+        // range, and the archive only when the range reaches archived months; without them the list
+        // covers the live table
         private void handleList(HttpExchange ex) throws SQLException, IOException {
-            List<String> items = new ArrayList<>();
-            try (Connection c = DBConnection.getConnection()) {
-                PreparedStatement ps = c.prepareStatement(
-                        "SELECT s.id, s.quantity, s.total_price, s.sale_date, p.name AS pet_name, p.species AS pet_species, p.breed AS pet_breed, c.name AS customer_name, c.phone AS customer_phone " +
-                                "FROM sales s JOIN pets p ON s.pet_id = p.id JOIN customers c ON s.customer_id = c.id ORDER BY s.sale_date DESC");
-                ResultSet rs = ps.executeQuery();
-                while (rs.next()) {
-                    int id = rs.getInt("id");
-                    int qty = rs.getInt("quantity");
-                    double total = rs.getDouble("total_price");
-                    String saleDate = rs.getString("sale_date");
-                    String petName = rs.getString("pet_name");
-                    String petSpecies = rs.getString("pet_species");
-                    String petBreed = rs.getString("pet_breed");
-                    String custName = rs.getString("customer_name");
-                    String custPhone = rs.getString("customer_phone");
-
-                    String json = String.format("{\"id\":%d,\"quantity\":%d,\"total_price\":%.2f,\"sale_date\":\"%s\",\"pet\":{\"name\":\"%s\",\"species\":\"%s\",\"breed\":\"%s\"},\"customer\":{\"name\":\"%s\",\"phone\":\"%s\"}}",
-                            id, qty, total, jsonEscape(saleDate), jsonEscape(petName), jsonEscape(petSpecies), jsonEscape(petBreed), jsonEscape(custName), jsonEscape(custPhone));
-                    items.add(json);
+            FieldSet fields = requestedFields(ex, FieldSet.SALES);
+            if (fields == null) return;
+            Map<String, String> params = parseQuery(ex);
+            if (params.containsKey("from") || params.containsKey("to")) {
+                long from, to;
+                try {
+                    ZoneId zone = ZoneId.systemDefault();
+                    from = params.containsKey("from") ? LocalDate.parse(params.get("from")).atStartOfDay(zone).toInstant().toEpochMilli() : Long.MIN_VALUE;
+                    to = params.containsKey("to") ? LocalDate.parse(params.get("to")).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() : Long.MAX_VALUE;
+                } catch (DateTimeParseException e) {
+                    writeJson(ex, 400, "{\"error\": \"Invalid date\"}");
+                    return;
                 }
+                if (wantsCbor(ex)) {
+                    writeCbor(ex, FLIGHTS.run(flightKey(ex), () -> ShopCbor.sales(db(ex, () -> Repositories.sales().findBetween(fields, from, to)), fields)));
+                } else {
+                    writeJson(ex, 200, FLIGHTS.run(flightKey(ex), () -> ShopJson.salesUtf8(db(ex, () -> Repositories.sales().findBetween(fields, from, to)), fields)));
+                }
+                return;
             }
-            String body = "[" + String.join(",", items) + "]";
-            writeJson(ex, 200, body);
+            if (wantsCbor(ex)) {
+                writeCbor(ex, FLIGHTS.run(flightKey(ex), () -> ShopCbor.sales(db(ex, () -> Repositories.sales().findAll(fields)), fields)));
+                return;
+            }
+            if (fields == FieldSet.ALL_SALES && store().salesFeed.isLoaded()) {
+                SalesFeed.Snapshot snap = store().salesFeed.snapshot();
+                writeJsonArray(ex, snap.buf, snap.offset, snap.length);
+                return;
+            }
+            writeJson(ex, 200, FLIGHTS.run(flightKey(ex), () -> ShopJson.salesUtf8(db(ex, () -> Repositories.sales().findAll(fields)), fields)));
         }
 
+        // POST /api/sales {"pet_id", "customer_id", "quantity", "total_price", "idempotency_key"?}
+        //   -> 201 {"status": "created", "id": n}; 409 when the sale cannot be made
+        // A retried request with the same idempotency key (up to 64 characters) sells nothing and
+        // answers 200 {"status": "duplicate", "id": <the first sale>}.
         private void handleCreate(HttpExchange ex) throws IOException, SQLException {
             String body = readBody(ex);
             Map<String, String> m = parseJson(body);
@@ -396,41 +1091,561 @@ public class MainServer {
             int customerId = Integer.parseInt(m.getOrDefault("customer_id", "0"));
             int qty = Integer.parseInt(m.getOrDefault("quantity", "0"));
             double total = Double.parseDouble(m.getOrDefault("total_price", "0"));
+            if (qty <= 0) {
+                writeJson(ex, 400, "{\"error\": \"quantity must be positive\"}");
+                return;
+            }
+            String key = m.get("idempotency_key");
+            if (key != null && (key.isEmpty() || key.length() > 64)) {
+                writeJson(ex, 400, "{\"error\": \"Invalid idempotency_key\"}");
+                return;
+            }
 
-            try (Connection c = DBConnection.getConnection()) {
-                try {
-                    c.setAutoCommit(false);
-                    // check stock
-                    PreparedStatement ps1 = c.prepareStatement("SELECT quantity FROM pets WHERE id = ? FOR UPDATE");
-                    ps1.setInt(1, petId);
-                    ResultSet rs = ps1.executeQuery();
-                    if (!rs.next()) throw new SQLException("Pet not found");
-                    int stock = rs.getInt("quantity");
-                    if (stock < qty) throw new SQLException("Not enough stock");
-
-                    // update stock
-                    PreparedStatement ps2 = c.prepareStatement("UPDATE pets SET quantity = ? WHERE id = ?");
-                    ps2.setInt(1, stock - qty);
-                    ps2.setInt(2, petId);
-                    ps2.executeUpdate();
-
-                    // insert sale
-                    PreparedStatement ps3 = c.prepareStatement("INSERT INTO sales (pet_id, customer_id, quantity, total_price) VALUES (?, ?, ?, ?)");
-                    ps3.setInt(1, petId);
-                    ps3.setInt(2, customerId);
-                    ps3.setInt(3, qty);
-                    ps3.setDouble(4, total);
-                    ps3.executeUpdate();
-
-                    c.commit();
-                    writeJson(ex, 201, "{\"status\":\"created\"}");
-                } catch (Exception err) {
-                    c.rollback();
-                    throw err;
-                } finally {
-                    c.setAutoCommit(true);
+            boolean[] duplicate = {false};
+            int id;
+            try {
+                id = db(ex, () -> {
+                    Integer earlier = key == null ? null : Repositories.sales().saleForKey(key);
+                    if (earlier != null) {
+                        duplicate[0] = true;
+                        return earlier;
+                    }
+                    // a sale without a hold of its own may only take units nobody is holding
+                    StockHolds.Hold hold = store().holds.place(petId, qty, HOLD_TTL_SECONDS * 1000, MainServer::currentStock);
+                    if (hold == null) throw new SQLException("Not enough stock");
+                    try {
+                        return store().holds.confirm(hold.id, h -> {
+                            int saleId = Repositories.sales().checkout(petId, customerId, qty, total, key);
+                            saleCreated(saleId, petId, customerId, qty, total);
+                            return saleId;
+                        });
+                    } catch (SQLIntegrityConstraintViolationException e) {
+                        // the same key committed concurrently
+                        earlier = key == null ? null : Repositories.sales().saleForKey(key);
+                        if (earlier == null) throw e;
+                        duplicate[0] = true;
+                        return earlier;
+                    }
+                });
+            } catch (SQLException e) {
+                if (!CHECKOUT_REJECTIONS.contains(e.getMessage())) throw e;
+                writeJson(ex, 409, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+                return;
+            }
+            if (duplicate[0]) writeJson(ex, 200, "{\"status\":\"duplicate\",\"id\":" + id + "}");
+            else writeJson(ex, 201, "{\"status\":\"created\",\"id\":" + id + "}");
+        }
+
+        // GET /api/sales/analytics?group=day|month|pet|customer|species&from=YYYY-MM-DD&to=YYYY-MM-DD&pet_id=&customer_id=&limit=
+        // Periods are returned in date order, everything else by revenue descending.
+        private void handleAnalytics(HttpExchange ex) throws SQLException, IOException {
+            Map<String, String> params = parseQuery(ex);
+            SalesAnalytics.Query q = new SalesAnalytics.Query();
+            try {
+                q.group = SalesAnalytics.Group.valueOf(params.getOrDefault("group", "month").toUpperCase());
+                if (params.containsKey("from")) q.fromDay = (int) LocalDate.parse(params.get("from")).toEpochDay();
+                if (params.containsKey("to")) q.toDay = (int) LocalDate.parse(params.get("to")).toEpochDay();
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid group or date\"}");
+                return;
+            }
+            int limit;
+            try {
+                q.petId = Integer.parseInt(params.getOrDefault("pet_id", "0"));
+                q.customerId = Integer.parseInt(params.getOrDefault("customer_id", "0"));
+                limit = Integer.parseInt(params.getOrDefault("limit", "0"));
+            } catch (NumberFormatException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid pet_id, customer_id or limit\"}");
+                return;
+            }
+            writeJson(ex, 200, FLIGHTS.run(flightKey(ex), () -> analytics(ex, q, limit)));
+        }
+
+        // GET /api/sales/top?window=day|week|month&limit=20&verify=true
+        // Current calendar period; pets by units sold, customers by revenue. Figures are streaming
+        // estimates (quantity / revenue is an upper bound, min_* a lower bound); verify=true re-counts
+        // the listed leaders in the database and adds exact_*.
+        private void handleTop(HttpExchange ex) throws SQLException, IOException {
+            Map<String, String> params = parseQuery(ex);
+            TopSellers.Window window;
+            int limit;
+            try {
+                window = TopSellers.Window.valueOf(params.getOrDefault("window", "day").toUpperCase());
+                limit = Integer.parseInt(params.getOrDefault("limit", "20"));
+            } catch (IllegalArgumentException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid window or limit\"}");
+                return;
+            }
+            int n = Math.max(1, Math.min(limit, store().topSellers.capacity()));
+            boolean verify = "true".equals(params.get("verify"));
+            writeJson(ex, 200, FLIGHTS.run(flightKey(ex), () -> topBoards(ex, window, n, verify)));
+        }
+
+        private byte[] topBoards(HttpExchange ex, TopSellers.Window window, int n, boolean verify) throws SQLException {
+            TopSellers top = store().topSellers;
+            long from = top.fromMillis(window), to = top.toMillis(window);
+            List<TopSellers.Entry> pets = top.top(window, TopSellers.Board.PETS, n);
+            List<TopSellers.Entry> customers = top.top(window, TopSellers.Board.CUSTOMERS, n);
+            Map<Integer, String> petNames = db(ex, () -> {
+                Map<Integer, String> names = new HashMap<>();
+                for (TopSellers.Entry e : pets) {
+                    Pet p = Repositories.pets().findById(e.id, FieldSet.parse(FieldSet.PETS, "name"));
+                    if (p != null) names.put(e.id, p.name);
+                }
+                return names;
+            });
+            Map<Integer, String> customerNames = db(ex, () -> {
+                Map<Integer, String> names = new HashMap<>();
+                for (TopSellers.Entry e : customers) {
+                    Customer c = Repositories.customers().findById(e.id, FieldSet.parse(FieldSet.CUSTOMERS, "name"));
+                    if (c != null) names.put(e.id, c.name);
+                }
+                return names;
+            });
+            Map<Integer, double[]> exactPets = verify ? db(ex, () -> Repositories.sales().totalsBetween(false, leaderIds(pets), from, to)) : null;
+            Map<Integer, double[]> exactCustomers = verify ? db(ex, () -> Repositories.sales().totalsBetween(true, leaderIds(customers), from, to)) : null;
+
+            ZoneId zone = ZoneId.systemDefault();
+            StringBuilder sb = new StringBuilder("{\"window\":\"").append(window.name().toLowerCase())
+                    .append("\",\"from\":\"").append(Instant.ofEpochMilli(from).atZone(zone).toLocalDate())
+                    .append("\",\"to\":\"").append(Instant.ofEpochMilli(to - 1).atZone(zone).toLocalDate())
+                    .append("\",\"pets\":[");
+            for (int i = 0; i < pets.size(); i++) {
+                TopSellers.Entry e = pets.get(i);
+                if (i > 0) sb.append(',');
+                leader(sb, e, petNames).append(",\"quantity\":").append(e.estimate).append(",\"min_quantity\":").append(e.minimum);
+                if (exactPets != null) sb.append(",\"exact_quantity\":").append(exactPets.containsKey(e.id) ? (long) exactPets.get(e.id)[0] : 0);
+                sb.append('}');
+            }
+            sb.append("],\"customers\":[");
+            for (int i = 0; i < customers.size(); i++) {
+                TopSellers.Entry e = customers.get(i);
+                if (i > 0) sb.append(',');
+                leader(sb, e, customerNames).append(String.format(",\"revenue\":%.2f,\"min_revenue\":%.2f", e.estimate / 100.0, e.minimum / 100.0));
+                if (exactCustomers != null) sb.append(String.format(",\"exact_revenue\":%.2f", exactCustomers.containsKey(e.id) ? exactCustomers.get(e.id)[1] : 0.0));
+                sb.append('}');
+            }
+            return utf8(sb.append("]}").toString());
+        }
+
+        private List<Integer> leaderIds(List<TopSellers.Entry> entries) {
+            List<Integer> ids = new ArrayList<>(entries.size());
+            for (TopSellers.Entry e : entries) ids.add(e.id);
+            return ids;
+        }
+
+        // Opens a leader's object: {"id":..,"name":..,"guaranteed":..
+        private StringBuilder leader(StringBuilder sb, TopSellers.Entry e, Map<Integer, String> names) {
+            String name = names.get(e.id);
+            sb.append("{\"id\":").append(e.id).append(",\"name\":");
+            if (name == null) sb.append("null");
+            else sb.append('"').append(jsonEscape(name)).append('"');
+            return sb.append(",\"guaranteed\":").append(e.guaranteed);
+        }
+
+        private byte[] analytics(HttpExchange ex, SalesAnalytics.Query q, int limit) throws SQLException {
+            Map<Integer, String> speciesByPet = null;
+            if (q.group == SalesAnalytics.Group.SPECIES) {
+                speciesByPet = new HashMap<>();
+                for (Pet p : db(ex, () -> Repositories.pets().findAll())) speciesByPet.put(p.id, p.species);
+            }
+            List<SalesAnalytics.Bucket> buckets = store().analytics.aggregate(q, speciesByPet);
+            if (q.group == SalesAnalytics.Group.DAY || q.group == SalesAnalytics.Group.MONTH) {
+                buckets.sort(Comparator.comparing(b -> b.key));
+            } else {
+                buckets.sort(Comparator.comparingDouble((SalesAnalytics.Bucket b) -> b.revenue).reversed());
+            }
+            if (limit > 0 && buckets.size() > limit) buckets = buckets.subList(0, limit);
+
+            List<String> items = new ArrayList<>();
+            for (SalesAnalytics.Bucket b : buckets) {
+                items.add(String.format("{\"key\":\"%s\",\"revenue\":%.2f,\"quantity\":%d,\"count\":%d}",
+                        jsonEscape(b.key), b.revenue, b.quantity, b.count));
+            }
+            return utf8("[" + String.join(",", items) + "]");
+        }
+    }
+
+    // Checkout failures that retrying cannot fix (see SaleRepository#checkout)
+    private static final Set<String> CHECKOUT_REJECTIONS = Set.of("Not enough stock", "Pet not found", "Customer not found");
+
+    private static Integer currentStock(int petId) throws SQLException {
+        Pet p = Repositories.pets().findById(petId, FieldSet.parse(FieldSet.PETS, "stock"));
+        return p == null ? null : p.quantity;
+    }
+
+    private static String holdJson(StockHolds.Hold h) {
+        return "{\"id\":" + h.id + ",\"pet_id\":" + h.petId + ",\"quantity\":" + h.quantity
+                + ",\"expires_at\":\"" + ShopJson.formatDate(new Timestamp(h.expiresAt)) + "\"}";
+    }
+
+    // ---------- Holds Handler ----------
+    // POST   /api/holds                {"pet_id", "quantity", "ttl_seconds"?}  -> 201 hold, 409 when not enough is available
+    // GET    /api/holds/{id}
+    // POST   /api/holds/{id}/confirm   {"customer_id", "total_price"?}  -> 201 with the sale id; total defaults to price * quantity
+    // DELETE /api/holds/{id}
+    static class HoldsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
+                ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+                ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
+                ex.sendResponseHeaders(204, -1);
+                return;
+            }
+            String method = ex.getRequestMethod();
+            String[] parts = ex.getRequestURI().getPath().split("/");
+            try {
+                if ("POST".equalsIgnoreCase(method) && parts.length == 3) {
+                    handleCreate(ex);
+                } else if ("GET".equalsIgnoreCase(method) && parts.length == 4) {
+                    StockHolds.Hold h = store().holds.get(Integer.parseInt(parts[3]));
+                    if (h == null) writeJson(ex, 404, "{\"error\": \"Not found\"}");
+                    else writeJson(ex, 200, holdJson(h));
+                } else if ("POST".equalsIgnoreCase(method) && parts.length == 5 && "confirm".equals(parts[4])) {
+                    handleConfirm(ex, Integer.parseInt(parts[3]));
+                } else if ("DELETE".equalsIgnoreCase(method) && parts.length == 4) {
+                    if (store().holds.release(Integer.parseInt(parts[3]))) writeJson(ex, 200, "{\"status\":\"released\"}");
+                    else writeJson(ex, 404, "{\"error\": \"Not found\"}");
+                } else {
+                    writeJson(ex, 404, "{\"error\": \"Not found\"}");
                 }
+            } catch (RejectedExecutionException | SQLTimeoutException e) {
+                writeUnavailable(ex, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+            }
+        }
+
+        private void handleCreate(HttpExchange ex) throws IOException, SQLException {
+            Map<String, String> m = parseJson(readBody(ex));
+            int petId = Integer.parseInt(m.getOrDefault("pet_id", "0"));
+            int qty = Integer.parseInt(m.getOrDefault("quantity", "0"));
+            long ttl = Math.min(Long.parseLong(m.getOrDefault("ttl_seconds", String.valueOf(HOLD_TTL_SECONDS))), 3600);
+            if (qty <= 0 || ttl <= 0) {
+                writeJson(ex, 400, "{\"error\": \"quantity and ttl_seconds must be positive\"}");
+                return;
             }
+            StockHolds.Hold h = db(ex, () -> store().holds.place(petId, qty, ttl * 1000, MainServer::currentStock));
+            if (h == null) writeJson(ex, 409, "{\"error\": \"Not enough stock available\"}");
+            else writeJson(ex, 201, holdJson(h));
+        }
+
+        private void handleConfirm(HttpExchange ex, int id) throws IOException, SQLException {
+            Map<String, String> m = parseJson(readBody(ex));
+            int customerId = Integer.parseInt(m.getOrDefault("customer_id", "0"));
+            String totalParam = m.get("total_price");
+            Integer created = db(ex, () -> store().holds.confirm(id, h -> {
+                double total;
+                if (totalParam != null) {
+                    total = Double.parseDouble(totalParam);
+                } else {
+                    Pet p = Repositories.pets().findById(h.petId, FieldSet.parse(FieldSet.PETS, "price"));
+                    if (p == null) throw new SQLException("Pet not found");
+                    total = p.price * h.quantity;
+                }
+                int saleId = Repositories.sales().checkout(h.petId, customerId, h.quantity, total);
+                saleCreated(saleId, h.petId, customerId, h.quantity, total);
+                return saleId;
+            }));
+            if (created == null) writeJson(ex, 404, "{\"error\": \"Hold not found or expired\"}");
+            else writeJson(ex, 201, "{\"status\":\"created\",\"sale_id\":" + created + "}");
+        }
+    }
+
+    // ---------- Chain Handler ----------
+    // Queries across all stores, fanned out concurrently (see fanOut) and merged; stores that fail are
+    // listed under "errors" and left out of the merge.
+    // GET /api/chain/sales/totals?from=YYYY-MM-DD&to=YYYY-MM-DD  -> revenue, quantity and count per store and chain-wide
+    // GET /api/chain/stock?species=&name=&min=                   -> pets with at least min (default 1) available, per store
+    static class ChainHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            String path = ex.getRequestURI().getPath();
+            try {
+                if (!"GET".equalsIgnoreCase(ex.getRequestMethod())) {
+                    writeJson(ex, 404, "{\"error\": \"Not found\"}");
+                } else if ("/api/chain/sales/totals".equals(path)) {
+                    handleSalesTotals(ex);
+                } else if ("/api/chain/stock".equals(path)) {
+                    handleStock(ex);
+                } else {
+                    writeJson(ex, 404, "{\"error\": \"Not found\"}");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+            }
+        }
+
+        // Each store sums its own analytics store, archived months included
+        private void handleSalesTotals(HttpExchange ex) throws IOException {
+            Map<String, String> params = parseQuery(ex);
+            SalesAnalytics.Query q = new SalesAnalytics.Query();
+            try {
+                if (params.containsKey("from")) q.fromDay = (int) LocalDate.parse(params.get("from")).toEpochDay();
+                if (params.containsKey("to")) q.toDay = (int) LocalDate.parse(params.get("to")).toEpochDay();
+            } catch (DateTimeParseException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid date\"}");
+                return;
+            }
+            Map<String, String> errors = new LinkedHashMap<>();
+            Map<String, double[]> totals = fanOut(AdmissionController.RouteClass.REPORT, s -> {
+                double[] t = new double[3]; // revenue, quantity, count
+                for (SalesAnalytics.Bucket b : s.analytics.aggregate(q, null)) {
+                    t[0] += b.revenue;
+                    t[1] += b.quantity;
+                    t[2] += b.count;
+                }
+                return t;
+            }, errors);
+
+            double[] chain = new double[3];
+            StringBuilder stores = new StringBuilder("{");
+            for (Map.Entry<String, double[]> e : totals.entrySet()) {
+                double[] t = e.getValue();
+                for (int i = 0; i < 3; i++) chain[i] += t[i];
+                if (stores.length() > 1) stores.append(',');
+                stores.append('"').append(jsonEscape(e.getKey())).append("\":").append(totalsJson(t));
+            }
+            stores.append('}');
+            writeJson(ex, 200, "{\"total\":" + totalsJson(chain) + ",\"stores\":" + stores + ",\"errors\":" + errorsJson(errors) + "}");
+        }
+
+        private void handleStock(HttpExchange ex) throws IOException {
+            Map<String, String> params = parseQuery(ex);
+            String species = params.get("species");
+            String name = params.containsKey("name") ? params.get("name").toLowerCase() : null;
+            int min;
+            try {
+                min = Integer.parseInt(params.getOrDefault("min", "1"));
+            } catch (NumberFormatException e) {
+                writeJson(ex, 400, "{\"error\": \"Invalid min\"}");
+                return;
+            }
+            Map<String, String> errors = new LinkedHashMap<>();
+            // filtering and encoding run on each store's bulkhead too, so stores proceed in parallel
+            Map<String, String> found = fanOut(AdmissionController.RouteClass.READ, s -> {
+                List<Pet> pets = CATALOG_TTL_SECONDS > 0 ? s.catalog.pets() : Repositories.pets().findAll(FieldSet.ALL_PETS);
+                StringBuilder sb = new StringBuilder();
+                for (Pet p : pets) {
+                    if (species != null && !species.equalsIgnoreCase(p.species)) continue;
+                    if (name != null && (p.name == null || !p.name.toLowerCase().contains(name))) continue;
+                    if (p.quantity - s.holds.held(p.id) < min) continue;
+                    if (sb.length() > 0) sb.append(',');
+                    sb.append("{\"store\":\"").append(jsonEscape(s.id)).append("\",\"pet\":");
+                    ShopJson.pet(sb, p, FieldSet.ALL_PETS, s.holds::held);
+                    sb.append('}');
+                }
+                return sb.toString();
+            }, errors);
+
+            StringBuilder results = new StringBuilder("[");
+            for (String rows : found.values()) {
+                if (rows.isEmpty()) continue;
+                if (results.length() > 1) results.append(',');
+                results.append(rows);
+            }
+            writeJson(ex, 200, "{\"results\":" + results.append(']') + ",\"errors\":" + errorsJson(errors) + "}");
+        }
+
+        private static String totalsJson(double[] t) {
+            return String.format("{\"revenue\":%.2f,\"quantity\":%d,\"count\":%d}", t[0], (long) t[1], (long) t[2]);
+        }
+
+        private static String errorsJson(Map<String, String> errors) {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<String, String> e : errors.entrySet()) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append('"').append(jsonEscape(e.getKey())).append("\":\"").append(jsonEscape(e.getValue())).append('"');
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    // ---------- Batch Handler ----------
+    // POST /api/batch  [{"method": "GET", "path": "/api/pets?fields=id,name"}, {"method": "POST", "path": "/api/sales", "body": {...}}]
+    //   -> {"results": [{"status": 200, "body": [...]}, {"status": 201, "body": {...}}]}, in request order
+    // Every sub-request runs through the same handler (and admission) as it would on its own, on the
+    // batch's store unless its path says ?store=. Reads between two writes run concurrently; writes run
+    // one after another on this thread, each admitted and sent to its route's bulkhead (a sale to
+    // checkout) like a separate request. Writes commit one by one, and a failed write does not stop the
+    // ones after it.
+    static class BatchHandler implements HttpHandler {
+        private static final int MAX_REQUESTS = 50;
+        // context path -> handler, as registered on the server
+        private final Map<String, HttpHandler> routes;
+
+        BatchHandler(Map<String, HttpHandler> routes) {
+            this.routes = routes;
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
+                ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                ex.getResponseHeaders().add("Access-Control-Allow-Methods", "POST, OPTIONS");
+                ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Store-Id");
+                ex.sendResponseHeaders(204, -1);
+                return;
+            }
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                writeJson(ex, 404, "{\"error\": \"Not found\"}");
+                return;
+            }
+            List<BatchExchange> subs = new ArrayList<>();
+            List<HttpHandler> handlers = new ArrayList<>();
+            String error = parse(ex, subs, handlers);
+            if (error != null) {
+                writeJson(ex, 400, "{\"error\": \"" + jsonEscape(error) + "\"}");
+                return;
+            }
+            try {
+                int i = 0;
+                while (i < subs.size()) {
+                    int j = i;
+                    while (j < subs.size() && subs.get(j).isRead()) j++;
+                    runReads(subs, handlers, i, j);
+                    // in order; admission waits here, not on a bulkhead thread
+                    for (; j < subs.size() && !subs.get(j).isRead(); j++) subs.get(j).dispatch(handlers.get(j));
+                    i = j;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                writeJson(ex, 500, "{\"error\": \"" + jsonEscape(e.getMessage()) + "\"}");
+                return;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(utf8("{\"results\":["));
+            for (int i = 0; i < subs.size(); i++) {
+                if (i > 0) out.write(',');
+                subs.get(i).writeResult(out);
+            }
+            out.write(utf8("]}"));
+            writeJson(ex, 200, out.toByteArray());
+        }
+
+        // Builds the sub-exchanges; returns an error message for a malformed batch
+        @SuppressWarnings("unchecked")
+        private String parse(HttpExchange ex, List<BatchExchange> subs, List<HttpHandler> handlers) throws IOException {
+            Object parsed;
+            try {
+                parsed = MiniJson.parse(readBody(ex), "body");
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+            if (!(parsed instanceof List) || ((List<Object>) parsed).isEmpty()) return "Expected a non-empty JSON array of requests";
+            List<Object> raw = (List<Object>) parsed;
+            if (raw.size() > MAX_REQUESTS) return "At most " + MAX_REQUESTS + " requests per batch";
+            String store = DBConnection.currentStore();
+            for (int i = 0; i < raw.size(); i++) {
+                Map<String, Object> o = raw.get(i) instanceof Map ? (Map<String, Object>) raw.get(i) : null;
+                Object method = o == null ? null : o.get("method");
+                Object path = o == null ? null : o.get("path");
+                HttpHandler handler = path instanceof String ? route((String) path) : null;
+                if (!(method instanceof String) || handler == null) return "Invalid request at index " + i;
+                // "body" is passed to the handler as written; a JSON string is unwrapped first
+                Object body = o.get("body");
+                String text = body instanceof MiniJson.Raw ? ((MiniJson.Raw) body).json : "";
+                if (text.startsWith("\"")) text = (String) MiniJson.parse(text);
+                subs.add(new BatchExchange(ex, ((String) method).toUpperCase(), (String) path, text, store));
+                handlers.add(handler);
+            }
+            return null;
+        }
+
+        private HttpHandler route(String pathAndQuery) {
+            if (!pathAndQuery.startsWith("/")) return null;
+            int q = pathAndQuery.indexOf('?');
+            String path = q < 0 ? pathAndQuery : pathAndQuery.substring(0, q);
+            for (Map.Entry<String, HttpHandler> e : routes.entrySet()) {
+                if (path.equals(e.getKey()) || path.startsWith(e.getKey() + "/")) return e.getValue();
+            }
+            return null;
+        }
+
+        // On BATCH_READ_POOL, like separate requests; the last one runs here
+        private void runReads(List<BatchExchange> subs, List<HttpHandler> handlers, int from, int to) {
+            List<CompletableFuture<Void>> running = new ArrayList<>();
+            for (int i = from; i < to - 1; i++) {
+                BatchExchange sub = subs.get(i);
+                HttpHandler handler = handlers.get(i);
+                running.add(CompletableFuture.runAsync(() -> sub.dispatch(handler), BATCH_READ_POOL));
+            }
+            if (to > from) subs.get(to - 1).dispatch(handlers.get(to - 1));
+            for (CompletableFuture<Void> f : running) f.join();
+        }
+    }
+
+    // One sub-request of a batch: the handler reads the request from and writes its response into memory
+    static class BatchExchange extends HttpExchange {
+        private final HttpExchange parent;
+        private final String method;
+        private final URI uri;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        private InputStream in;
+        private OutputStream out = response;
+        private int status = -1;
+
+        BatchExchange(HttpExchange parent, String method, String path, String body, String store) {
+            this.parent = parent;
+            this.method = method;
+            this.uri = URI.create(path);
+            this.in = new ByteArrayInputStream(utf8(body));
+            requestHeaders.add("Content-Type", "application/json");
+            requestHeaders.add("X-Store-Id", store);
+        }
+
+        boolean isRead() {
+            return "GET".equals(method);
+        }
+
+        void dispatch(HttpHandler handler) {
+            try {
+                handler.handle(this);
+            } catch (IOException | RuntimeException e) {
+                status = 500;
+                response.reset();
+                response.writeBytes(utf8("{\"error\": \"" + jsonEscape(String.valueOf(e.getMessage())) + "\"}"));
+            }
+        }
+
+        // {"status": 200, "body": <the handler's JSON, or null when it sent none>}
+        void writeResult(ByteArrayOutputStream sink) {
+            sink.writeBytes(utf8("{\"status\":" + status + ",\"body\":"));
+            String type = responseHeaders.getFirst("Content-Type");
+            if (response.size() == 0) sink.writeBytes(utf8("null"));
+            else if (type != null && type.startsWith("application/json")) sink.writeBytes(response.toByteArray());
+            else sink.writeBytes(utf8("\"" + jsonEscape(response.toString(StandardCharsets.UTF_8)) + "\""));
+            sink.write('}');
+        }
+
+        @Override public Headers getRequestHeaders() { return requestHeaders; }
+        @Override public Headers getResponseHeaders() { return responseHeaders; }
+        @Override public URI getRequestURI() { return uri; }
+        @Override public String getRequestMethod() { return method; }
+        @Override public HttpContext getHttpContext() { return parent.getHttpContext(); }
+        @Override public void close() { }
+        @Override public InputStream getRequestBody() { return in; }
+        @Override public OutputStream getResponseBody() { return out; }
+        @Override public void sendResponseHeaders(int rCode, long responseLength) { status = rCode; }
+        @Override public InetSocketAddress getRemoteAddress() { return parent.getRemoteAddress(); }
+        @Override public int getResponseCode() { return status; }
+        @Override public InetSocketAddress getLocalAddress() { return parent.getLocalAddress(); }
+        @Override public String getProtocol() { return parent.getProtocol(); }
+        @Override public Object getAttribute(String name) { return null; }
+        @Override public void setAttribute(String name, Object value) { }
+        @Override public HttpPrincipal getPrincipal() { return null; }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) in = i;
+            if (o != null) out = o;
         }
     }
 }
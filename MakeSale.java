@@ -1,11 +1,20 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class MakeSale extends JFrame {
     private JComboBox<String> petComboBox, customerComboBox;
     private JTextField quantityField;
     private JLabel totalLabel;
+    // Pets shown in the combo box by id; sales are queued against these figures, not re-read
+    private final Map<Integer, Pet> pets = new LinkedHashMap<>();
+
+    // The combo boxes only show these columns
+    private static final FieldSet COMBO_PET_FIELDS = FieldSet.parse(FieldSet.PETS, "id,name,species,price,stock");
+    private static final FieldSet COMBO_CUSTOMER_FIELDS = FieldSet.parse(FieldSet.CUSTOMERS, "id,name,phone");
 
     public MakeSale() {
         setTitle("Make Sale");
@@ -95,43 +104,32 @@ public class MakeSale extends JFrame {
 
     private void loadPets() {
         try {
-            Connection conn = DBConnection.getConnection();
-            String sql = "SELECT id, name, species, price, quantity FROM pets WHERE quantity > 0";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-
-            while (rs.next()) {
-                String item = rs.getInt("id") + " - " + rs.getString("name") +
-                        " (" + rs.getString("species") + ") - $" + rs.getDouble("price") +
-                        " - Stock: " + rs.getInt("quantity");
-                petComboBox.addItem(item);
-            }
-
-            rs.close();
-            stmt.close();
-            conn.close();
+            for (Pet pet : Repositories.pets().findInStock(COMBO_PET_FIELDS)) pets.put(pet.id, pet);
+            showPets();
 
         } catch (SQLException ex) {
             JOptionPane.showMessageDialog(this, "Error loading pets: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    private void showPets() {
+        petComboBox.removeAllItems();
+        for (Pet pet : pets.values()) {
+            if (pet.quantity <= 0) continue;
+            String item = pet.id + " - " + pet.name +
+                    " (" + pet.species + ") - $" + pet.price +
+                    " - Stock: " + pet.quantity;
+            petComboBox.addItem(item);
+        }
+    }
+
     private void loadCustomers() {
         try {
-            Connection conn = DBConnection.getConnection();
-            String sql = "SELECT id, name, phone FROM customers";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-
-            while (rs.next()) {
-                String item = rs.getInt("id") + " - " + rs.getString("name") + " (" + rs.getString("phone") + ")";
+            for (Customer customer : Repositories.customers().findAll(COMBO_CUSTOMER_FIELDS)) {
+                String item = customer.id + " - " + customer.name + " (" + customer.phone + ")";
                 customerComboBox.addItem(item);
             }
 
-            rs.close();
-            stmt.close();
-            conn.close();
-
         } catch (SQLException ex) {
             JOptionPane.showMessageDialog(this, "Error loading customers: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
@@ -145,26 +143,14 @@ public class MakeSale extends JFrame {
             int petId = Integer.parseInt(petSelection.split(" - ")[0]);
             int quantity = Integer.parseInt(quantityField.getText().trim());
 
-            Connection conn = DBConnection.getConnection();
-            String sql = "SELECT price FROM pets WHERE id = ?";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setInt(1, petId);
-            ResultSet rs = stmt.executeQuery();
-
-            if (rs.next()) {
-                double price = rs.getDouble("price");
-                double total = price * quantity;
+            Pet pet = pets.get(petId);
+            if (pet != null) {
+                double total = pet.price * quantity;
                 totalLabel.setText(String.format("Total: $%.2f", total));
             }
 
-            rs.close();
-            stmt.close();
-            conn.close();
-
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Please enter a valid quantity!", "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (SQLException ex) {
-            JOptionPane.showMessageDialog(this, "Database error: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -182,62 +168,32 @@ public class MakeSale extends JFrame {
             int customerId = Integer.parseInt(customerSelection.split(" - ")[0]);
             int quantity = Integer.parseInt(quantityField.getText().trim());
 
-            Connection conn = DBConnection.getConnection();
-            conn.setAutoCommit(false);
-
-            String checkSql = "SELECT price, quantity FROM pets WHERE id = ?";
-            PreparedStatement checkStmt = conn.prepareStatement(checkSql);
-            checkStmt.setInt(1, petId);
-            ResultSet rs = checkStmt.executeQuery();
-
-            if (rs.next()) {
-                int availableQuantity = rs.getInt("quantity");
-                double price = rs.getDouble("price");
-
-                if (quantity > availableQuantity) {
-                    JOptionPane.showMessageDialog(this, "Not enough stock! Available: " + availableQuantity, "Error", JOptionPane.ERROR_MESSAGE);
-                    conn.rollback();
-                    conn.close();
-                    return;
-                }
-
-                double totalPrice = price * quantity;
-
-                String saleSql = "INSERT INTO sales (pet_id, customer_id, quantity, total_price) VALUES (?, ?, ?, ?)";
-                PreparedStatement saleStmt = conn.prepareStatement(saleSql);
-                saleStmt.setInt(1, petId);
-                saleStmt.setInt(2, customerId);
-                saleStmt.setInt(3, quantity);
-                saleStmt.setDouble(4, totalPrice);
-                saleStmt.executeUpdate();
-
-                String updateSql = "UPDATE pets SET quantity = quantity - ? WHERE id = ?";
-                PreparedStatement updateStmt = conn.prepareStatement(updateSql);
-                updateStmt.setInt(1, quantity);
-                updateStmt.setInt(2, petId);
-                updateStmt.executeUpdate();
-
-                conn.commit();
-
-                JOptionPane.showMessageDialog(this, String.format("Sale completed! Total: $%.2f", totalPrice), "Success", JOptionPane.INFORMATION_MESSAGE);
+            Pet pet = pets.get(petId);
+            if (pet == null) {
+                JOptionPane.showMessageDialog(this, "Pet not found!", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (quantity > pet.quantity) {
+                JOptionPane.showMessageDialog(this, "Not enough stock! Available: " + pet.quantity, "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
 
-                quantityField.setText("");
-                totalLabel.setText("Total: $0.00");
-                petComboBox.removeAllItems();
-                loadPets();
+            double totalPrice = pet.price * quantity;
+            // Written to the local outbox and sent to the server in the background, so the till
+            // keeps selling while the database or network is down
+            SaleOutbox.shared().add(DBConnection.currentStore(), petId, customerId, quantity, totalPrice);
 
-                saleStmt.close();
-                updateStmt.close();
-            }
+            JOptionPane.showMessageDialog(this, String.format("Sale queued! Total: $%.2f", totalPrice), "Success", JOptionPane.INFORMATION_MESSAGE);
 
-            rs.close();
-            checkStmt.close();
-            conn.close();
+            quantityField.setText("");
+            totalLabel.setText("Total: $0.00");
+            pets.put(petId, new Pet(pet.id, pet.name, pet.species, pet.breed, pet.age, pet.price, pet.quantity - quantity));
+            showPets();
 
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Please enter a valid quantity!", "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (SQLException ex) {
-            JOptionPane.showMessageDialog(this, "Database error: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Could not save the sale: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 }
@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small recursive JSON parser for request bodies that nest (arrays, objects inside objects).
+ *
+ * Objects become LinkedHashMap, arrays become ArrayList, strings become String, true/false become
+ * Boolean and null becomes null. Numbers are returned as their literal text (like
+ * MainServer.parseJson does) so callers parse them with the type they expect.
+ */
+public class MiniJson {
+    /** The unparsed JSON text of a value; see {@link #parse(String, String)}. */
+    public static final class Raw {
+        public final String json;
+
+        Raw(String json) {
+            this.json = json;
+        }
+    }
+
+    private final String s;
+    private final String rawKey;
+    private int pos;
+
+    private MiniJson(String s, String rawKey) {
+        this.s = s;
+        this.rawKey = rawKey;
+    }
+
+    /** @throws IllegalArgumentException when the text is not valid JSON */
+    public static Object parse(String json) {
+        return parse(json, null);
+    }
+
+    /**
+     * Like {@link #parse(String)}, except that the values of object members named `rawKey` are checked
+     * but kept as their source text ({@link Raw}), so they can be passed on byte for byte.
+     */
+    public static Object parse(String json, String rawKey) {
+        MiniJson p = new MiniJson(json == null ? "" : json, rawKey);
+        Object v = p.value();
+        p.skipWs();
+        if (p.pos != p.s.length()) throw p.error("Trailing characters");
+        return v;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at offset " + pos);
+    }
+
+    private void skipWs() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private Object value() {
+        skipWs();
+        if (pos >= s.length()) throw error("Unexpected end of input");
+        char c = s.charAt(pos);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default: return number();
+        }
+    }
+
+    private Object literal(String word, Object v) {
+        if (!s.startsWith(word, pos)) throw error("Unexpected token");
+        pos += word.length();
+        return v;
+    }
+
+    private String number() {
+        int start = pos;
+        while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+        if (start == pos) throw error("Unexpected character '" + s.charAt(pos) + "'");
+        return s.substring(start, pos);
+    }
+
+    private String string() {
+        pos++; // opening quote
+        StringBuilder sb = new StringBuilder();
+        while (pos < s.length()) {
+            char c = s.charAt(pos++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= s.length()) break;
+            char e = s.charAt(pos++);
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > s.length()) throw error("Bad unicode escape");
+                    sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: sb.append(e);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Map<String, Object> object() {
+        pos++; // {
+        Map<String, Object> m = new LinkedHashMap<>();
+        skipWs();
+        if (pos < s.length() && s.charAt(pos) == '}') {
+            pos++;
+            return m;
+        }
+        while (true) {
+            skipWs();
+            if (pos >= s.length() || s.charAt(pos) != '"') throw error("Expected field name");
+            String key = string();
+            skipWs();
+            if (pos >= s.length() || s.charAt(pos) != ':') throw error("Expected ':'");
+            pos++;
+            if (key.equals(rawKey)) {
+                skipWs();
+                int start = pos;
+                value();
+                m.put(key, new Raw(s.substring(start, pos)));
+            } else {
+                m.put(key, value());
+            }
+            skipWs();
+            if (pos >= s.length()) throw error("Unterminated object");
+            char c = s.charAt(pos++);
+            if (c == '}') return m;
+            if (c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+
+    private List<Object> array() {
+        pos++; // [
+        List<Object> list = new ArrayList<>();
+        skipWs();
+        if (pos < s.length() && s.charAt(pos) == ']') {
+            pos++;
+            return list;
+        }
+        while (true) {
+            list.add(value());
+            skipWs();
+            if (pos >= s.length()) throw error("Unterminated array");
+            char c = s.charAt(pos++);
+            if (c == ']') return list;
+            if (c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * A row of the `pets` table.
+ */
+public class Pet {
+    public final int id;
+    public final String name;
+    public final String species;
+    public final String breed;
+    public final int age;
+    public final double price;
+    public final int quantity;
+
+    public Pet(int id, String name, String species, String breed, int age, double price, int quantity) {
+        this.id = id;
+        this.name = name;
+        this.species = species;
+        this.breed = breed;
+        this.age = age;
+        this.price = price;
+        this.quantity = quantity;
+    }
+}
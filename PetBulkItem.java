@@ -0,0 +1,37 @@
+import java.util.Map;
+
+/**
+ * One item of a bulk pet update: either a partial update of a single pet (same column keys as
+ * {@link PetRepository#update}) or a percentage price change for every pet of a species.
+ */
+public class PetBulkItem {
+    public final int id;
+    public final Map<String, Object> fields;
+    public final String species;
+    public final double pricePercent;
+
+    private PetBulkItem(int id, Map<String, Object> fields, String species, double pricePercent) {
+        this.id = id;
+        this.fields = fields;
+        this.species = species;
+        this.pricePercent = pricePercent;
+    }
+
+    public static PetBulkItem update(int id, Map<String, Object> fields) {
+        return new PetBulkItem(id, fields, null, 0);
+    }
+
+    /** A percent of 10 raises prices by 10%, -5 lowers them by 5%; results are rounded to cents. */
+    public static PetBulkItem priceAdjustment(String species, double percent) {
+        return new PetBulkItem(0, null, species, percent);
+    }
+
+    public boolean isAdjustment() {
+        return species != null;
+    }
+
+    /** Multiplier applied to the current price. */
+    public double priceFactor() {
+        return 1 + pricePercent / 100.0;
+    }
+}
@@ -0,0 +1,57 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage operations for pets. Implementations: {@link JdbcRepositories} and {@link InMemoryShop}.
+ */
+public interface PetRepository {
+    /** All pets, newest first. Fields outside the projection may be left null / zero. */
+    List<Pet> findAll(FieldSet fields) throws SQLException;
+
+    default List<Pet> findAll() throws SQLException {
+        return findAll(FieldSet.ALL_PETS);
+    }
+
+    /** Pets with quantity > 0, in storage order. */
+    List<Pet> findInStock(FieldSet fields) throws SQLException;
+
+    default List<Pet> findInStock() throws SQLException {
+        return findInStock(FieldSet.ALL_PETS);
+    }
+
+    /** The pet with the given id, or null. */
+    Pet findById(int id, FieldSet fields) throws SQLException;
+
+    default Pet findById(int id) throws SQLException {
+        return findById(id, FieldSet.ALL_PETS);
+    }
+
+    /** Inserts the pet (its id is ignored) and returns the generated id. */
+    int create(Pet pet) throws SQLException;
+
+    /**
+     * Applies a partial update. Keys are column names (name, species, breed, age, price, quantity).
+     * Returns false when no pet has the given id.
+     */
+    boolean update(int id, Map<String, Object> fields) throws SQLException;
+
+    /**
+     * Applies all items in order within one transaction: either every item is applied or none is.
+     * Returns the number of rows each item changed (0 for an unknown id); the JDBC engine may report
+     * {@link java.sql.Statement#SUCCESS_NO_INFO} when the driver does not know the count.
+     */
+    int[] bulkUpdate(List<PetBulkItem> items) throws SQLException;
+
+    /** Returns false when no pet has the given id; otherwise leaves a tombstone for delta sync. */
+    boolean delete(int id) throws SQLException;
+
+    /**
+     * Pets created or updated, and ids deleted, after change version `since` (0 for everything).
+     * Writes, bulk updates and checkouts each stamp the rows they touch with a new version.
+     */
+    ChangeSet<Pet> changesSince(long since, FieldSet fields) throws SQLException;
+
+    /** A value that changes whenever any pet row changes; used to validate cached copies. */
+    long checksum() throws SQLException;
+}
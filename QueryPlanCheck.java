@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plan-regression check for the queries in {@link JdbcRepositories}: migrates the database named by
+ * DB_URL, runs EXPLAIN on every handler query and exits with status 1 if a plan falls back to a
+ * full table scan or a filesort where an index is expected (full listings may do both).
+ *
+ * Usage: java QueryPlanCheck
+ *
+ * Run it against a database with realistic row counts; on near-empty tables MySQL may pick a scan
+ * on purpose. Keep QUERIES in step with JdbcRepositories when either changes.
+ */
+public class QueryPlanCheck {
+    private static class Query {
+        final String name;
+        final String sql;
+        final Object[] params;
+        // listings and in-stock filters read every row of the driving table by design, and sorting
+        // all of them costs the same with or without the index; joined tables must still use an index
+        final boolean fullScanAllowed;
+
+        Query(String name, String sql, boolean fullScanAllowed, Object... params) {
+            this.name = name;
+            this.sql = sql;
+            this.fullScanAllowed = fullScanAllowed;
+            this.params = params;
+        }
+    }
+
+    private static final String SALES_JOIN = "FROM sales s JOIN pets p ON s.pet_id = p.id JOIN customers c ON s.customer_id = c.id";
+
+    private static final List<Query> QUERIES = new ArrayList<>();
+
+    static {
+        QUERIES.add(new Query("pets.findAll", FieldSet.ALL_PETS.select("FROM pets ORDER BY created_at DESC"), true));
+        QUERIES.add(new Query("pets.findInStock", FieldSet.ALL_PETS.select("FROM pets WHERE quantity > 0"), true));
+        QUERIES.add(new Query("pets.findById", FieldSet.ALL_PETS.select("FROM pets WHERE id = ?"), false, 1));
+        QUERIES.add(new Query("pets.update", "UPDATE pets SET price=? WHERE id=?", false, 10.0, 1));
+        QUERIES.add(new Query("pets.priceAdjustment", "UPDATE pets SET price = ROUND(price * ?, 2) WHERE species = ?", false, 1.1, "Dog"));
+        QUERIES.add(new Query("pets.delete", "DELETE FROM pets WHERE id = ?", false, 1));
+        // delta sync reads only rows past the client's version, in version order
+        QUERIES.add(new Query("pets.changesSince", FieldSet.ALL_PETS.select("FROM pets WHERE version > ? ORDER BY version"), false, 1L << 40));
+        QUERIES.add(new Query("tombstones.since", "SELECT row_id FROM tombstones WHERE table_name = ? AND version > ? ORDER BY version", false, "pets", 1L << 40));
+        QUERIES.add(new Query("customers.findAll", FieldSet.ALL_CUSTOMERS.select("FROM customers ORDER BY created_at DESC"), true));
+        QUERIES.add(new Query("customers.findById", FieldSet.ALL_CUSTOMERS.select("FROM customers WHERE id = ?"), false, 1));
+        QUERIES.add(new Query("customers.changesSince", FieldSet.ALL_CUSTOMERS.select("FROM customers WHERE version > ? ORDER BY version"), false, 1L << 40));
+        QUERIES.add(new Query("sales.findAll", FieldSet.ALL_SALES.select(SALES_JOIN + " ORDER BY s.sale_date DESC"), true));
+        QUERIES.add(new Query("sales.findById", FieldSet.ALL_SALES.select(SALES_JOIN + " WHERE s.id = ?"), false, 1));
+        // a one-month range must stay a range read of the covering index (and prune to its partitions)
+        QUERIES.add(new Query("sales.findBetween", FieldSet.ALL_SALES.select(SALES_JOIN + " WHERE s.sale_date >= ? AND s.sale_date < ? ORDER BY s.sale_date DESC"),
+                false, Timestamp.valueOf("2024-01-01 00:00:00"), Timestamp.valueOf("2024-02-01 00:00:00")));
+        QUERIES.add(new Query("sales.totalsBetween", "SELECT pet_id, SUM(quantity), SUM(total_price) FROM sales "
+                + "WHERE pet_id IN (?,?) AND sale_date >= ? AND sale_date < ? GROUP BY pet_id",
+                false, 1, 2, Timestamp.valueOf("2024-01-01 00:00:00"), Timestamp.valueOf("2024-02-01 00:00:00")));
+        QUERIES.add(new Query("sales.checkout.lock", "SELECT quantity FROM pets WHERE id = ? FOR UPDATE", false, 1));
+        QUERIES.add(new Query("sales.checkout.customer", "SELECT 1 FROM customers WHERE id = ? FOR SHARE", false, 1));
+        QUERIES.add(new Query("sales.checkout.stock", "UPDATE pets SET quantity = ? WHERE id = ?", false, 1, 1));
+        QUERIES.add(new Query("sales.scan",
+                "SELECT id, pet_id, customer_id, quantity, total_price, sale_date FROM sales ORDER BY sale_date", true));
+    }
+
+    public static void main(String[] args) throws SQLException {
+        int applied = SchemaMigrations.migrate();
+        System.out.println("Schema at version " + SchemaMigrations.currentVersion() + " (" + applied + " migrations applied)");
+        int failures = 0;
+        try (Connection c = DBConnection.getConnection()) {
+            for (Query q : QUERIES) {
+                String problem = check(c, q);
+                System.out.printf("%-4s %-24s %s%n", problem == null ? "ok" : "FAIL", q.name, problem == null ? "" : problem);
+                if (problem != null) failures++;
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of " + QUERIES.size() + " queries regressed");
+            System.exit(1);
+        }
+        System.out.println("All " + QUERIES.size() + " query plans use indexes");
+    }
+
+    // Returns a description of the first bad plan row, or null when the plan is acceptable
+    private static String check(Connection c, Query q) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("EXPLAIN " + q.sql)) {
+            for (int i = 0; i < q.params.length; i++) ps.setObject(i + 1, q.params[i]);
+            try (ResultSet rs = ps.executeQuery()) {
+                boolean driving = true;
+                while (rs.next()) {
+                    String table = rs.getString("table");
+                    String type = rs.getString("type");
+                    String extra = rs.getString("Extra");
+                    if (extra != null && extra.contains("Using filesort") && !q.fullScanAllowed) return table + ": filesort";
+                    if ("ALL".equals(type) && !(q.fullScanAllowed && driving)) return table + ": full table scan";
+                    driving = false;
+                }
+            }
+        }
+        return null;
+    }
+}
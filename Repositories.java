@@ -0,0 +1,67 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the storage engine used by MainServer and the Swing screens.
+ *
+ * Set PETSHOP_STORE=memory to run the whole shop on {@link InMemoryShop} (no MySQL needed);
+ * the default is jdbc, which goes through {@link DBConnection}.
+ *
+ * Every store in {@link DBConnection#stores()} has its own engine, and the accessors return the one of
+ * the calling thread's store. The JDBC repositories are stateless (DBConnection routes their
+ * connections), so all stores share them; in memory, each store gets an independent InMemoryShop.
+ */
+public class Repositories {
+    private static class Engine {
+        final PetRepository pets;
+        final CustomerRepository customers;
+        final SaleRepository sales;
+
+        Engine(PetRepository pets, CustomerRepository customers, SaleRepository sales) {
+            this.pets = pets;
+            this.customers = customers;
+            this.sales = sales;
+        }
+    }
+
+    private static final Map<String, Engine> engines = new ConcurrentHashMap<>();
+
+    static {
+        String store = System.getenv("PETSHOP_STORE");
+        if ("memory".equalsIgnoreCase(store)) {
+            for (String id : DBConnection.stores()) useInMemory(id, new InMemoryShop());
+        } else {
+            useJdbc();
+        }
+    }
+
+    public static boolean isJdbc() {
+        return pets() instanceof JdbcRepositories.Pets;
+    }
+
+    public static void useJdbc() {
+        Engine jdbc = new Engine(new JdbcRepositories.Pets(), new JdbcRepositories.Customers(), new JdbcRepositories.Sales());
+        for (String id : DBConnection.stores()) engines.put(id, jdbc);
+    }
+
+    /** Runs the current store on `shop`. */
+    public static void useInMemory(InMemoryShop shop) {
+        useInMemory(DBConnection.currentStore(), shop);
+    }
+
+    public static void useInMemory(String store, InMemoryShop shop) {
+        engines.put(store, new Engine(shop.pets(), shop.customers(), shop.sales()));
+    }
+
+    public static PetRepository pets() {
+        return engines.get(DBConnection.currentStore()).pets;
+    }
+
+    public static CustomerRepository customers() {
+        return engines.get(DBConnection.currentStore()).customers;
+    }
+
+    public static SaleRepository sales() {
+        return engines.get(DBConnection.currentStore()).sales;
+    }
+}
@@ -0,0 +1,66 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Behaviour check for the storage engine chosen by PETSHOP_STORE (see {@link Repositories}): creates
+ * a pet and a customer, runs edge cases the REST handlers rely on and exits with status 1 if any of
+ * them misbehaves.
+ *
+ * Usage: PETSHOP_STORE=memory java RepositoryCheck   (or against a scratch database with DB_URL)
+ */
+public class RepositoryCheck {
+    private interface Check {
+        // Returns a description of what went wrong, or null
+        String run() throws SQLException;
+    }
+
+    private static final List<String> names = new ArrayList<>();
+    private static final List<Check> checks = new ArrayList<>();
+
+    private static int petId;
+    private static int customerId;
+
+    static {
+        // id 0 is what a request without pet_id / customer_id parses to
+        add("pets.findById(0)", () -> Repositories.pets().findById(0) == null ? null : "found a pet");
+        add("customers.findById(0)", () -> Repositories.customers().findById(0) == null ? null : "found a customer");
+        add("checkout without pet", () -> rejected(0, customerId, "Pet not found"));
+        add("checkout without customer", () -> rejected(petId, Integer.MAX_VALUE, "Customer not found"));
+    }
+
+    private static void add(String name, Check check) {
+        names.add(name);
+        checks.add(check);
+    }
+
+    // A checkout that must fail with `message` and leave the pet's stock alone
+    private static String rejected(int pet, int customer, String message) throws SQLException {
+        int before = Repositories.pets().findById(petId).quantity;
+        try {
+            int saleId = Repositories.sales().checkout(pet, customer, 1, 10.0);
+            return "sold as sale " + saleId;
+        } catch (SQLException e) {
+            if (!message.equals(e.getMessage())) return "failed with \"" + e.getMessage() + "\"";
+        }
+        int after = Repositories.pets().findById(petId).quantity;
+        return after == before ? null : "stock changed from " + before + " to " + after;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (Repositories.isJdbc()) SchemaMigrations.migrate();
+        petId = Repositories.pets().create(new Pet(0, "Check", "Dog", "Mixed", 1, 10.0, 5));
+        customerId = Repositories.customers().create(new Customer(0, "Check", "check@example.com", "555-0100", "1 Check Street"));
+        int failures = 0;
+        for (int i = 0; i < checks.size(); i++) {
+            String problem = checks.get(i).run();
+            System.out.printf("%-4s %-24s %s%n", problem == null ? "ok" : "FAIL", names.get(i), problem == null ? "" : problem);
+            if (problem != null) failures++;
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of " + checks.size() + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All " + checks.size() + " checks passed");
+    }
+}
@@ -0,0 +1,33 @@
+import java.sql.Timestamp;
+
+/**
+ * A row of the `sales` table joined with the pet and customer it references.
+ */
+public class Sale {
+    public final int id;
+    public final int petId;
+    public final int customerId;
+    public final int quantity;
+    public final double totalPrice;
+    public final Timestamp saleDate;
+    public final String petName;
+    public final String petSpecies;
+    public final String petBreed;
+    public final String customerName;
+    public final String customerPhone;
+
+    public Sale(int id, int petId, int customerId, int quantity, double totalPrice, Timestamp saleDate,
+                String petName, String petSpecies, String petBreed, String customerName, String customerPhone) {
+        this.id = id;
+        this.petId = petId;
+        this.customerId = customerId;
+        this.quantity = quantity;
+        this.totalPrice = totalPrice;
+        this.saleDate = saleDate;
+        this.petName = petName;
+        this.petSpecies = petSpecies;
+        this.petBreed = petBreed;
+        this.customerName = customerName;
+        this.customerPhone = customerPhone;
+    }
+}
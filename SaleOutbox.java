@@ -0,0 +1,359 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of sales made at the Swing till, so checkout returns at once and a sale survives a
+ * database or network outage (see MakeSale).
+ *
+ * {@link #add} appends the sale to a local log (PETSHOP_OUTBOX_FILE, default sale-outbox.log) and
+ * forces it to disk before returning. A background thread sends pending sales to the REST server
+ * (PETSHOP_SERVER_URL, default http://localhost:8000) as POST /api/batch requests of up to BATCH_SIZE
+ * sales, each with its own idempotency key: a sale that committed but whose answer was lost is
+ * recognised on the retry and not sold twice. Network errors and 5xx answers back off and retry; a
+ * sale the server rejects (4xx other than 408 and 429, e.g. an unknown pet) is marked failed and kept
+ * for staff to review. "Not enough stock" is retried for up to an hour first, since stock set aside by
+ * a hold comes back when the hold expires.
+ *
+ * Log records are [int length][payload][int CRC-32 of payload]. A torn record at the end (a crash
+ * mid-append) is cut off on load. Whenever nothing is pending the log is rewritten with just the
+ * failed sales.
+ */
+public class SaleOutbox {
+    private static final byte QUEUED = 'Q', SENT = 'S', FAILED = 'F';
+    private static final int BATCH_SIZE = 20;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    // "Not enough stock" may only mean the units are held (holds last at most an hour), so it is
+    // retried this long before the sale counts as rejected
+    private static final long STOCK_RETRY_MILLIS = 61 * 60_000L;
+
+    /** A queued sale; `failure` is the server's reason once it was rejected. */
+    public static class Sale {
+        public final String key;
+        public final String store;
+        public final int petId;
+        public final int customerId;
+        public final int quantity;
+        public final double totalPrice;
+        public final long createdAt;
+        String failure;
+        // when the server first answered "Not enough stock"; 0 if it has not
+        long shortSince;
+
+        Sale(String key, String store, int petId, int customerId, int quantity, double totalPrice, long createdAt) {
+            this.key = key;
+            this.store = store;
+            this.petId = petId;
+            this.customerId = customerId;
+            this.quantity = quantity;
+            this.totalPrice = totalPrice;
+            this.createdAt = createdAt;
+        }
+
+        public String failure() {
+            return failure;
+        }
+    }
+
+    /** Told about every change of the counts, on the thread that made it. */
+    public interface Listener {
+        void changed(int pending, int failed);
+    }
+
+    private static SaleOutbox shared;
+
+    /** This process's outbox, opened and started on first use. */
+    public static synchronized SaleOutbox shared() throws IOException {
+        if (shared == null) {
+            shared = new SaleOutbox(Paths.get(System.getenv().getOrDefault("PETSHOP_OUTBOX_FILE", "sale-outbox.log")),
+                    System.getenv().getOrDefault("PETSHOP_SERVER_URL", "http://localhost:8000"));
+            shared.start();
+        }
+        return shared;
+    }
+
+    private final Path file;
+    private final String serverUrl;
+    // by key, oldest first
+    private final Map<String, Sale> pending = new LinkedHashMap<>();
+    private final Map<String, Sale> failed = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private FileChannel log;
+    private volatile boolean running;
+    private Thread sender;
+
+    public SaleOutbox(Path file, String serverUrl) throws IOException {
+        this.file = file;
+        this.serverUrl = serverUrl;
+        load();
+        log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    /** Queues a sale durably and returns its idempotency key. */
+    public String add(String store, int petId, int customerId, int quantity, double totalPrice) throws IOException {
+        Sale s = new Sale(UUID.randomUUID().toString(), store, petId, customerId, quantity, totalPrice, System.currentTimeMillis());
+        synchronized (this) {
+            append(QUEUED, s, null);
+            pending.put(s.key, s);
+            notifyAll();
+        }
+        fireChanged();
+        return s.key;
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int failedCount() {
+        return failed.size();
+    }
+
+    public synchronized List<Sale> failedSales() {
+        return new ArrayList<>(failed.values());
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        sender = new Thread(this::sendLoop, "sale-outbox");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    private void fireChanged() {
+        int p, f;
+        synchronized (this) {
+            p = pending.size();
+            f = failed.size();
+        }
+        for (Listener l : listeners) l.changed(p, f);
+    }
+
+    // ---------- log file ----------
+
+    private void load() throws IOException {
+        if (!Files.isRegularFile(file)) return;
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int good = 0;
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt();
+            if (length <= 0 || buf.remaining() < length + 4) break;
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (buf.getInt() != (int) crc.getValue()) break;
+            replay(payload);
+            good = buf.position();
+        }
+        if (good < bytes.length) {
+            System.err.println("Sale outbox " + file + ": dropping " + (bytes.length - good) + " bytes of a torn record");
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String key = in.readUTF();
+        if (type == QUEUED) {
+            Sale s = new Sale(key, in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readDouble(), in.readLong());
+            pending.put(key, s);
+        } else if (type == SENT) {
+            pending.remove(key);
+        } else if (type == FAILED) {
+            Sale s = pending.remove(key);
+            if (s == null) return;
+            s.failure = in.readUTF();
+            failed.put(key, s);
+        }
+    }
+
+    // Caller holds the lock
+    private void append(byte type, Sale s, String reason) throws IOException {
+        log.write(record(type, s, reason));
+        log.force(false);
+    }
+
+    private static ByteBuffer record(byte type, Sale s, String reason) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(s.key);
+        if (type == QUEUED) {
+            out.writeUTF(s.store);
+            out.writeInt(s.petId);
+            out.writeInt(s.customerId);
+            out.writeInt(s.quantity);
+            out.writeDouble(s.totalPrice);
+            out.writeLong(s.createdAt);
+        } else if (type == FAILED) {
+            out.writeUTF(reason);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(4 + payload.length + 4);
+        buf.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    // Rewrites the log with only the failed sales; caller holds the lock and nothing is pending
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Sale s : failed.values()) {
+                ch.write(record(QUEUED, s, null));
+                ch.write(record(FAILED, s, s.failure));
+            }
+            ch.force(true);
+        }
+        log.close();
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // reopened even if the move failed, so later add() calls append to the old log
+            log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    // ---------- sending ----------
+
+    private void sendLoop() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (running) {
+            List<Sale> batch = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    while (running && pending.isEmpty()) wait();
+                    for (Sale s : pending.values()) {
+                        if (batch.size() == BATCH_SIZE) break;
+                        batch.add(s);
+                    }
+                }
+                if (batch.isEmpty()) continue;
+                if (send(batch)) {
+                    backoff = MIN_BACKOFF_MILLIS;
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Sale outbox: sending " + batch.size() + " sales failed, retrying in " + backoff + " ms: " + e);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Returns false when some sales must be retried later
+    @SuppressWarnings("unchecked")
+    private boolean send(List<Sale> batch) throws IOException {
+        StringBuilder sb = new StringBuilder("[");
+        for (Sale s : batch) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"method\":\"POST\",\"path\":\"/api/sales?store=").append(URLEncoder.encode(s.store, StandardCharsets.UTF_8))
+                    .append("\",\"body\":{\"pet_id\":").append(s.petId)
+                    .append(",\"customer_id\":").append(s.customerId)
+                    .append(",\"quantity\":").append(s.quantity)
+                    .append(",\"total_price\":").append(String.format(Locale.ROOT, "%.2f", s.totalPrice))
+                    .append(",\"idempotency_key\":\"").append(s.key).append("\"}}");
+        }
+        byte[] request = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(serverUrl + "/api/batch").openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(30_000);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(request);
+        }
+        int status = conn.getResponseCode();
+        String response;
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            response = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (status != 200) throw new IOException("HTTP " + status + " " + response);
+
+        Object parsed = MiniJson.parse(response);
+        List<Object> results = parsed instanceof Map ? (List<Object>) ((Map<String, Object>) parsed).get("results") : null;
+        if (results == null || results.size() != batch.size()) throw new IOException("Unexpected batch response: " + response);
+        boolean allDone = true;
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                Sale s = batch.get(i);
+                Map<String, Object> r = (Map<String, Object>) results.get(i);
+                int code = Integer.parseInt(String.valueOf(r.get("status")));
+                Object body = r.get("body");
+                Object error = body instanceof Map ? ((Map<String, Object>) body).get("error") : null;
+                if (code >= 200 && code < 300) {
+                    // 201 created, or 200 duplicate: an earlier attempt already made the sale
+                    append(SENT, s, null);
+                    pending.remove(s.key);
+                } else if (code == 409 && "Not enough stock".equals(error) && !stockRetryOver(s)) {
+                    allDone = false;
+                } else if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                    s.failure = error == null ? "HTTP " + code : String.valueOf(error);
+                    append(FAILED, s, s.failure);
+                    pending.remove(s.key);
+                    failed.put(s.key, s);
+                } else {
+                    allDone = false;
+                }
+            }
+            if (pending.isEmpty()) compact();
+        }
+        fireChanged();
+        return allDone;
+    }
+
+    private static boolean stockRetryOver(Sale s) {
+        long now = System.currentTimeMillis();
+        if (s.shortSince == 0) s.shortSince = now;
+        return now - s.shortSince >= STOCK_RETRY_MILLIS;
+    }
+}
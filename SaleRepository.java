@@ -0,0 +1,62 @@
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage operations for sales. Implementations: {@link JdbcRepositories} and {@link InMemoryShop}.
+ */
+public interface SaleRepository {
+    /** Receives raw `sales` rows (no join) from {@link #scan(RowVisitor)}. */
+    interface RowVisitor {
+        void row(int id, int petId, int customerId, int quantity, double totalPrice, long saleMillis);
+    }
+
+    /**
+     * All sales joined with their pet and customer, newest first. Fields outside the projection may be
+     * left null / zero; pet and customer ids are always filled. Months moved to the {@link SalesArchive}
+     * are not included; use {@link #findBetween} for those.
+     */
+    List<Sale> findAll(FieldSet fields) throws SQLException;
+
+    /**
+     * Like {@link #findAll(FieldSet)}, limited to fromMillis <= sale_date < toMillis, including archived
+     * months the range reaches.
+     */
+    List<Sale> findBetween(FieldSet fields, long fromMillis, long toMillis) throws SQLException;
+
+    default List<Sale> findAll() throws SQLException {
+        return findAll(FieldSet.ALL_SALES);
+    }
+
+    /**
+     * Exact totals over fromMillis <= sale_date < toMillis for the given pets, or customers when
+     * `byCustomer`: id -> {quantity, revenue}. Ids without sales are absent. Reads the live table only,
+     * without joins, so sales of deleted pets and customers still count.
+     */
+    Map<Integer, double[]> totalsBetween(boolean byCustomer, Collection<Integer> ids, long fromMillis, long toMillis) throws SQLException;
+
+    /** One sale joined with its pet and customer, or null. */
+    Sale findById(int id) throws SQLException;
+
+    /**
+     * Atomically checks stock, decrements it and records the sale. Throws SQLException with
+     * "Pet not found" or "Not enough stock" when the sale cannot be made. Returns the sale id.
+     */
+    default int checkout(int petId, int customerId, int quantity, double totalPrice) throws SQLException {
+        return checkout(petId, customerId, quantity, totalPrice, null);
+    }
+
+    /**
+     * Like {@link #checkout(int, int, int, double)}; a non-null `idempotencyKey` is recorded in the same
+     * transaction. A key used before fails with {@link java.sql.SQLIntegrityConstraintViolationException}
+     * and sells nothing; {@link #saleForKey} returns the sale it was first used for.
+     */
+    int checkout(int petId, int customerId, int quantity, double totalPrice, String idempotencyKey) throws SQLException;
+
+    /** The id of the sale made under an idempotency key, or null. */
+    Integer saleForKey(String idempotencyKey) throws SQLException;
+
+    /** Streams every sales row, archived months included, oldest first, without materializing them. */
+    void scan(RowVisitor visitor) throws SQLException;
+}
@@ -0,0 +1,300 @@
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Column store mirroring the sales table for analytics queries (revenue by period, by species,
+ * top pets / customers) without joining the sales table on every request.
+ *
+ * Sales are partitioned into one segment per calendar month. Each segment keeps its columns in
+ * primitive arrays (pet_id, customer_id, quantity, total_price, epoch day) plus min/max zone maps,
+ * so a query skips every segment whose ranges cannot match its filter. Matching segments are cut
+ * into chunks and aggregated in parallel on the common fork/join pool.
+ *
+ * Appends are serialized per segment; readers take a snapshot of the row count and never lock.
+ * {@link #bootstrap} rebuilds into new segments while queries keep using the old ones; sales appended
+ * meanwhile are replayed into the new segments (unless the scan already saw them) before the swap.
+ */
+public class SalesAnalytics {
+    /** How rows are grouped in a query result. */
+    public enum Group { DAY, MONTH, PET, CUSTOMER, SPECIES }
+
+    /** Filter and grouping for {@link #aggregate}. Zero / MIN / MAX values mean "no filter". */
+    public static class Query {
+        public int fromDay = Integer.MIN_VALUE;
+        public int toDay = Integer.MAX_VALUE;
+        public int petId;
+        public int customerId;
+        public Group group = Group.MONTH;
+    }
+
+    /** One output row: a group key with its totals. */
+    public static class Bucket {
+        public final String key;
+        public final double revenue;
+        public final long quantity;
+        public final long count;
+
+        Bucket(String key, double revenue, long quantity, long count) {
+            this.key = key;
+            this.revenue = revenue;
+            this.quantity = quantity;
+            this.count = count;
+        }
+    }
+
+    private static final int CHUNK_ROWS = 64 * 1024;
+
+    // replaced whole by bootstrap, so readers see either the old segments or the complete new ones
+    private volatile ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // non-null while bootstrap scans: sales appended meanwhile; guarded by this
+    private List<Row> missed;
+    // one bootstrap at a time
+    private final Object rebuilding = new Object();
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private static class Row {
+        final int saleId, petId, customerId, quantity, epochDay;
+        final double totalPrice;
+
+        Row(int saleId, int petId, int customerId, int quantity, double totalPrice, int epochDay) {
+            this.saleId = saleId;
+            this.petId = petId;
+            this.customerId = customerId;
+            this.quantity = quantity;
+            this.totalPrice = totalPrice;
+            this.epochDay = epochDay;
+        }
+    }
+
+    /** Rebuilds the store from the sales table; queries keep using the previous segments until it is done. */
+    public void bootstrap(SaleRepository sales) throws SQLException {
+        synchronized (rebuilding) {
+            synchronized (this) {
+                missed = new ArrayList<>();
+            }
+            try {
+                ConcurrentSkipListMap<Integer, Segment> rebuilt = new ConcurrentSkipListMap<>();
+                BitSet scanned = new BitSet();
+                sales.scan((id, petId, customerId, quantity, totalPrice, saleMillis) -> {
+                    if (id > 0) scanned.set(id);
+                    append(rebuilt, petId, customerId, quantity, totalPrice, epochDay(saleMillis));
+                });
+                synchronized (this) {
+                    for (Row r : missed) {
+                        if (r.saleId > 0 && scanned.get(r.saleId)) continue;
+                        append(rebuilt, r.petId, r.customerId, r.quantity, r.totalPrice, r.epochDay);
+                    }
+                    segments = rebuilt;
+                }
+            } finally {
+                synchronized (this) {
+                    missed = null;
+                }
+            }
+        }
+    }
+
+    public int epochDay(long millis) {
+        return (int) Instant.ofEpochMilli(millis).atZone(zone).toLocalDate().toEpochDay();
+    }
+
+    /** Adds a committed sale; `saleId` tells it apart from the rows a concurrent bootstrap scans. */
+    public synchronized void append(int saleId, int petId, int customerId, int quantity, double totalPrice, int epochDay) {
+        if (missed != null) missed.add(new Row(saleId, petId, customerId, quantity, totalPrice, epochDay));
+        append(segments, petId, customerId, quantity, totalPrice, epochDay);
+    }
+
+    private static void append(ConcurrentSkipListMap<Integer, Segment> into, int petId, int customerId, int quantity,
+                               double totalPrice, int epochDay) {
+        LocalDate d = LocalDate.ofEpochDay(epochDay);
+        int month = d.getYear() * 12 + d.getMonthValue() - 1;
+        into.computeIfAbsent(month, Segment::new).append(petId, customerId, quantity, totalPrice, epochDay);
+    }
+
+    public long rowCount() {
+        long n = 0;
+        for (Segment s : segments.values()) n += s.size;
+        return n;
+    }
+
+    /**
+     * Runs the query over all segments. For {@link Group#SPECIES} the caller supplies the pet-to-species
+     * mapping (pets not in the map are reported as "unknown"); it is ignored for other groupings.
+     */
+    public List<Bucket> aggregate(Query q, Map<Integer, String> speciesByPet) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (Segment s : segments.values()) {
+            int size = s.size;
+            if (size == 0 || !s.mayMatch(q)) continue;
+            for (int from = 0; from < size; from += CHUNK_ROWS) {
+                chunks.add(new Chunk(s, from, Math.min(size, from + CHUNK_ROWS)));
+            }
+        }
+        // species is a pet attribute: aggregate per pet in the scan, then fold pets into species
+        Group scanGroup = q.group == Group.SPECIES ? Group.PET : q.group;
+        Map<Integer, double[]> totals = chunks.isEmpty()
+                ? new HashMap<>()
+                : ForkJoinPool.commonPool().invoke(new ScanTask(chunks, 0, chunks.size(), q, scanGroup));
+
+        Map<String, double[]> byKey = new HashMap<>();
+        for (Map.Entry<Integer, double[]> e : totals.entrySet()) {
+            String key = keyName(q.group, e.getKey(), speciesByPet);
+            merge(byKey.computeIfAbsent(key, k -> new double[3]), e.getValue());
+        }
+        List<Bucket> out = new ArrayList<>(byKey.size());
+        for (Map.Entry<String, double[]> e : byKey.entrySet()) {
+            double[] t = e.getValue();
+            out.add(new Bucket(e.getKey(), t[0], (long) t[1], (long) t[2]));
+        }
+        return out;
+    }
+
+    private static String keyName(Group group, int key, Map<Integer, String> speciesByPet) {
+        switch (group) {
+            case DAY:
+                return LocalDate.ofEpochDay(key).toString();
+            case MONTH:
+                return String.format("%04d-%02d", key / 12, key % 12 + 1);
+            case SPECIES:
+                String species = speciesByPet == null ? null : speciesByPet.get(key);
+                return species == null ? "unknown" : species;
+            default:
+                return Integer.toString(key);
+        }
+    }
+
+    private static void merge(double[] into, double[] from) {
+        into[0] += from[0];
+        into[1] += from[1];
+        into[2] += from[2];
+    }
+
+    // ---------- storage ----------
+    private static class Segment {
+        // year * 12 + month - 1; every row of the segment falls in this month
+        private final int month;
+        private int[] petId = new int[256];
+        private int[] customerId = new int[256];
+        private int[] quantity = new int[256];
+        private double[] total = new double[256];
+        private int[] day = new int[256];
+        // zone maps; widened before size is published so readers never under-approximate
+        private volatile int minDay = Integer.MAX_VALUE, maxDay = Integer.MIN_VALUE;
+        private volatile int minPet = Integer.MAX_VALUE, maxPet = Integer.MIN_VALUE;
+        private volatile int minCustomer = Integer.MAX_VALUE, maxCustomer = Integer.MIN_VALUE;
+        private volatile int size;
+
+        Segment(int month) {
+            this.month = month;
+        }
+
+        synchronized void append(int p, int c, int q, double t, int d) {
+            int n = size;
+            if (n == petId.length) {
+                int cap = n * 2;
+                petId = Arrays.copyOf(petId, cap);
+                customerId = Arrays.copyOf(customerId, cap);
+                quantity = Arrays.copyOf(quantity, cap);
+                total = Arrays.copyOf(total, cap);
+                day = Arrays.copyOf(day, cap);
+            }
+            petId[n] = p;
+            customerId[n] = c;
+            quantity[n] = q;
+            total[n] = t;
+            day[n] = d;
+            if (d < minDay) minDay = d;
+            if (d > maxDay) maxDay = d;
+            if (p < minPet) minPet = p;
+            if (p > maxPet) maxPet = p;
+            if (c < minCustomer) minCustomer = c;
+            if (c > maxCustomer) maxCustomer = c;
+            size = n + 1;
+        }
+
+        boolean mayMatch(Query q) {
+            if (maxDay < q.fromDay || minDay > q.toDay) return false;
+            if (q.petId != 0 && (q.petId < minPet || q.petId > maxPet)) return false;
+            return q.customerId == 0 || (q.customerId >= minCustomer && q.customerId <= maxCustomer);
+        }
+    }
+
+    private static class Chunk {
+        final Segment segment;
+        final int from, to;
+
+        Chunk(Segment segment, int from, int to) {
+            this.segment = segment;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<Map<Integer, double[]>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int lo, hi;
+        private final Query q;
+        private final Group group;
+
+        ScanTask(List<Chunk> chunks, int lo, int hi, Query q, Group group) {
+            this.chunks = chunks;
+            this.lo = lo;
+            this.hi = hi;
+            this.q = q;
+            this.group = group;
+        }
+
+        @Override
+        protected Map<Integer, double[]> compute() {
+            if (hi - lo == 1) return scan(chunks.get(lo));
+            int mid = (lo + hi) >>> 1;
+            ScanTask left = new ScanTask(chunks, lo, mid, q, group);
+            left.fork();
+            Map<Integer, double[]> right = new ScanTask(chunks, mid, hi, q, group).compute();
+            Map<Integer, double[]> result = left.join();
+            for (Map.Entry<Integer, double[]> e : right.entrySet()) {
+                merge(result.computeIfAbsent(e.getKey(), k -> new double[3]), e.getValue());
+            }
+            return result;
+        }
+
+        private Map<Integer, double[]> scan(Chunk chunk) {
+            Segment s = chunk.segment;
+            // size was read before the arrays, so these references hold at least `to` rows
+            int[] petId = s.petId, customerId = s.customerId, quantity = s.quantity, day = s.day;
+            double[] total = s.total;
+            Map<Integer, double[]> out = new HashMap<>();
+            for (int i = chunk.from; i < chunk.to; i++) {
+                int d = day[i];
+                if (d < q.fromDay || d > q.toDay) continue;
+                if (q.petId != 0 && petId[i] != q.petId) continue;
+                if (q.customerId != 0 && customerId[i] != q.customerId) continue;
+                int key;
+                switch (group) {
+                    case DAY: key = d; break;
+                    case PET: key = petId[i]; break;
+                    case CUSTOMER: key = customerId[i]; break;
+                    default: key = s.month;
+                }
+                double[] t = out.computeIfAbsent(key, k -> new double[3]);
+                t[0] += total[i];
+                t[1] += quantity[i];
+                t[2] += 1;
+            }
+            return out;
+        }
+    }
+}
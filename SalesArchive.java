@@ -0,0 +1,328 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Monthly partitions of the `sales` table and the cold archive that old partitions move to.
+ *
+ * Schema migration 3 partitions sales by RANGE on sale_date: one partition per month named
+ * pYYYYMM, plus pmax for anything beyond the newest month. {@link #maintain} keeps MONTHS_AHEAD
+ * months of empty partitions ready, and moves every partition older than the horizon into a gzip
+ * file sales-YYYY-MM.gz in the archive directory before dropping it. The file is written to a
+ * temporary name, synced and renamed first, so a crash leaves either the partition or both; readers
+ * only use archive files for months older than the oldest live partition, which keeps such a
+ * leftover month from being counted twice.
+ *
+ * Archive files hold raw rows (no pet or customer names) so archived sales join with the current
+ * pets and customers exactly like live rows do. With several instances, the archive directory must
+ * be shared storage; GET_LOCK makes sure only one of them runs the job at a time. Each store has its
+ * own archive (see JdbcRepositories.archive()), and all its database work goes to that store.
+ */
+public class SalesArchive {
+    private static final String LOCK_NAME = "petshop_sales_archive";
+    private static final int MONTHS_AHEAD = 3;
+    private static final DateTimeFormatter PARTITION = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final DateTimeFormatter FILE = DateTimeFormatter.ofPattern("'sales-'yyyy-MM'.gz'");
+    private static final int MAGIC = 0x50534131; // "PSA1"
+
+    private final String store;
+    private final Path dir;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong partitionsAdded = new AtomicLong();
+    private final AtomicLong partitionsArchived = new AtomicLong();
+    private final AtomicLong rowsArchived = new AtomicLong();
+    private final AtomicLong archiveReads = new AtomicLong();
+    private volatile String lastError;
+    private ScheduledExecutorService scheduler;
+
+    public SalesArchive(String store, Path dir) {
+        this.store = store;
+        this.dir = dir;
+    }
+
+    // ---------- partitions ----------
+
+    /** "PARTITION pYYYYMM VALUES LESS THAN (...)" for every month from `first` to `last`, comma separated. */
+    static String partitionDefinitions(YearMonth first, YearMonth last) {
+        StringBuilder sb = new StringBuilder();
+        for (YearMonth m = first; !m.isAfter(last); m = m.plusMonths(1)) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append("PARTITION ").append(m.format(PARTITION))
+                    .append(" VALUES LESS THAN (UNIX_TIMESTAMP('").append(m.plusMonths(1).atDay(1)).append(" 00:00:00'))");
+        }
+        return sb.toString();
+    }
+
+    /** Statement for migration 3: partitions the (unpartitioned) sales table from `first` to MONTHS_AHEAD months from now. */
+    static String partitionTableSql(YearMonth first) {
+        YearMonth last = YearMonth.now().plusMonths(MONTHS_AHEAD);
+        if (first.isAfter(last)) first = last;
+        return "ALTER TABLE sales PARTITION BY RANGE (UNIX_TIMESTAMP(sale_date)) ("
+                + partitionDefinitions(first, last) + ", PARTITION pmax VALUES LESS THAN MAXVALUE)";
+    }
+
+    /** Months of the live monthly partitions, oldest first; empty when sales is not partitioned. */
+    static List<YearMonth> liveMonths(Connection c) throws SQLException {
+        List<YearMonth> months = new ArrayList<>();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT partition_name FROM information_schema.partitions "
+                     + "WHERE table_schema = DATABASE() AND table_name = 'sales' AND partition_name IS NOT NULL "
+                     + "ORDER BY partition_ordinal_position")) {
+            while (rs.next()) {
+                YearMonth m = parseMonth(rs.getString(1), "p", "");
+                if (m != null) months.add(m);
+            }
+        }
+        return months;
+    }
+
+    // "p202401" / "sales-2024-01.gz" -> 2024-01; null for anything else (pmax, temporary files)
+    private static YearMonth parseMonth(String name, String prefix, String suffix) {
+        if (name == null || !name.startsWith(prefix) || !name.endsWith(suffix)) return null;
+        String digits = name.substring(prefix.length(), name.length() - suffix.length()).replace("-", "");
+        if (digits.length() != 6) return null;
+        try {
+            return YearMonth.of(Integer.parseInt(digits.substring(0, 4)), Integer.parseInt(digits.substring(4)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // ---------- the job ----------
+
+    /** Runs {@link #maintain} now and then every `intervalMinutes` on a daemon thread; `onArchived` runs after partitions moved. */
+    public synchronized void start(int horizonMonths, long intervalMinutes, Runnable onArchived) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(() -> {
+                DBConnection.useStore(store);
+                r.run();
+            }, "sales-archive-" + store);
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (maintain(horizonMonths) > 0) onArchived.run();
+                lastError = null;
+            } catch (Exception e) {
+                lastError = String.valueOf(e.getMessage());
+                System.err.println("Sales archive job failed: " + e);
+            }
+        }, 0, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    /**
+     * Adds upcoming monthly partitions and archives the ones that ended more than `horizonMonths`
+     * months ago (0 only adds partitions). Returns how many partitions were archived; 0 as well when
+     * sales is not partitioned or another instance holds the job lock.
+     */
+    public int maintain(int horizonMonths) throws SQLException, IOException {
+        runs.incrementAndGet();
+        try (Connection c = DBConnection.getConnection(store)) {
+            try (PreparedStatement ps = c.prepareStatement("SELECT GET_LOCK(?, 0)")) {
+                // lock names are per MySQL server, which several stores may share
+                ps.setString(1, LOCK_NAME + "_" + store);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next() || rs.getInt(1) != 1) return 0;
+                }
+            }
+            try {
+                List<YearMonth> live = liveMonths(c);
+                if (live.isEmpty()) return 0;
+
+                YearMonth current = YearMonth.now();
+                YearMonth newest = live.get(live.size() - 1);
+                YearMonth last = current.plusMonths(MONTHS_AHEAD);
+                if (newest.isBefore(last)) {
+                    execute(c, "ALTER TABLE sales REORGANIZE PARTITION pmax INTO ("
+                            + partitionDefinitions(newest.plusMonths(1), last) + ", PARTITION pmax VALUES LESS THAN MAXVALUE)");
+                    partitionsAdded.addAndGet(newest.until(last, ChronoUnit.MONTHS));
+                }
+
+                if (horizonMonths <= 0) return 0;
+                YearMonth cutoff = current.minusMonths(horizonMonths);
+                int archived = 0;
+                // never the newest monthly partition: the table must keep at least one
+                for (int i = 0; i < live.size() - 1 && live.get(i).isBefore(cutoff); i++) {
+                    YearMonth m = live.get(i);
+                    rowsArchived.addAndGet(export(c, m));
+                    execute(c, "ALTER TABLE sales DROP PARTITION " + m.format(PARTITION));
+                    partitionsArchived.incrementAndGet();
+                    archived++;
+                    System.out.println("Archived sales partition " + m.format(PARTITION) + " to " + dir.resolve(m.format(FILE)));
+                }
+                return archived;
+            } finally {
+                try (PreparedStatement ps = c.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                    ps.setString(1, LOCK_NAME + "_" + store);
+                    ps.executeQuery().close();
+                }
+            }
+        }
+    }
+
+    // Streams one partition into its archive file; returns the row count
+    private long export(Connection c, YearMonth month) throws SQLException, IOException {
+        Files.createDirectories(dir);
+        Path target = dir.resolve(month.format(FILE));
+        Path tmp = dir.resolve(month.format(FILE) + ".tmp");
+        long rows = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            GZIPOutputStream gz = new GZIPOutputStream(fos, 1 << 16);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gz, 1 << 16));
+            out.writeInt(MAGIC);
+            try (PreparedStatement ps = c.prepareStatement(
+                    "SELECT id, pet_id, customer_id, quantity, total_price, sale_date FROM sales PARTITION ("
+                            + month.format(PARTITION) + ") ORDER BY sale_date",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.writeByte(1);
+                        out.writeInt(rs.getInt(1));
+                        out.writeInt(rs.getInt(2));
+                        out.writeInt(rs.getInt(3));
+                        out.writeInt(rs.getInt(4));
+                        out.writeDouble(rs.getDouble(5));
+                        out.writeLong(rs.getTimestamp(6).getTime());
+                        rows++;
+                    }
+                }
+            }
+            out.writeByte(0); // end marker: a file without it was cut short
+            out.flush();
+            gz.finish();
+            // on disk before the partition is dropped
+            fos.getFD().sync();
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return rows;
+    }
+
+    private static void execute(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    // ---------- reading ----------
+
+    /** Months that have an archive file, oldest first. */
+    public TreeSet<YearMonth> archivedMonths() throws IOException {
+        TreeSet<YearMonth> months = new TreeSet<>();
+        if (!Files.isDirectory(dir)) return months;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "sales-*.gz")) {
+            for (Path p : files) {
+                YearMonth m = parseMonth(p.getFileName().toString(), "sales-", ".gz");
+                if (m != null) months.add(m);
+            }
+        }
+        return months;
+    }
+
+    /** Epoch millis before which every sale has left the live table; Long.MIN_VALUE when nothing is archived. */
+    public long liveFromMillis() throws IOException {
+        TreeSet<YearMonth> files = archivedMonths();
+        if (files.isEmpty()) return Long.MIN_VALUE;
+        return files.last().plusMonths(1).atDay(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Archived months overlapping [fromMillis, toMillis) that are no longer in the live table,
+     * oldest first. Empty (without touching the database) when the range has no archive files.
+     */
+    public List<YearMonth> monthsToRead(long fromMillis, long toMillis) throws SQLException {
+        TreeSet<YearMonth> files;
+        try {
+            files = archivedMonths();
+        } catch (IOException e) {
+            throw new SQLException("Could not list sales archive " + dir + ": " + e.getMessage(), e);
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        YearMonth from = fromMillis == Long.MIN_VALUE ? null : YearMonth.from(Instant.ofEpochMilli(fromMillis).atZone(zone));
+        YearMonth to = toMillis == Long.MAX_VALUE ? null : YearMonth.from(Instant.ofEpochMilli(toMillis - 1).atZone(zone));
+        List<YearMonth> wanted = new ArrayList<>();
+        for (YearMonth m : files) {
+            if ((from == null || !m.isBefore(from)) && (to == null || !m.isAfter(to))) wanted.add(m);
+        }
+        if (wanted.isEmpty()) return wanted;
+        List<YearMonth> live;
+        try (Connection c = DBConnection.getConnection(store)) {
+            live = liveMonths(c);
+        }
+        if (live.isEmpty()) return new ArrayList<>();
+        wanted.removeIf(m -> !m.isBefore(live.get(0)));
+        return wanted;
+    }
+
+    /** Streams the rows of one archived month with fromMillis <= sale_date < toMillis, oldest first. */
+    public void read(YearMonth month, long fromMillis, long toMillis, SaleRepository.RowVisitor visitor) throws SQLException {
+        archiveReads.incrementAndGet();
+        Path file = dir.resolve(month.format(FILE));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file), 1 << 16), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a sales archive file");
+            while (in.readByte() == 1) {
+                int id = in.readInt();
+                int petId = in.readInt();
+                int customerId = in.readInt();
+                int quantity = in.readInt();
+                double total = in.readDouble();
+                long millis = in.readLong();
+                if (millis >= fromMillis && millis < toMillis) visitor.row(id, petId, customerId, quantity, total, millis);
+            }
+        } catch (EOFException e) {
+            throw new SQLException("Sales archive " + file + " is truncated", e);
+        } catch (IOException e) {
+            throw new SQLException("Could not read sales archive " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** JSON counters for the admin endpoint. */
+    public String snapshot() {
+        int files;
+        try {
+            files = archivedMonths().size();
+        } catch (IOException e) {
+            files = -1;
+        }
+        String error = lastError;
+        return String.format("{\"store\":\"%s\",\"dir\":\"%s\",\"archived_months\":%d,\"runs\":%d,\"partitions_added\":%d,"
+                        + "\"partitions_archived\":%d,\"rows_archived\":%d,\"archive_reads\":%d,\"last_error\":%s}",
+                ShopJson.escape(store), ShopJson.escape(dir.toAbsolutePath().toString()), files, runs.get(), partitionsAdded.get(),
+                partitionsArchived.get(), rowsArchived.get(), archiveReads.get(),
+                error == null ? "null" : "\"" + ShopJson.escape(error) + "\"");
+    }
+}
@@ -0,0 +1,206 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Materialized, pre-encoded JSON of the full sales listing (GET /api/sales without ?fields=).
+ *
+ * Sales are insert-only, so the feed is built once at startup and then extended as sales commit.
+ * The encoded rows live in one byte buffer filled from the end towards the front: the newest row is
+ * always at `start`, so adding a sale copies just that row (plus a comma) in front of the others and
+ * serving the list is a single write of buf[start..end). Bytes already published are never modified
+ * afterwards; growing or re-laying out the buffer allocates a new array, so a reader may keep writing
+ * from a snapshot taken under the lock.
+ *
+ * Rows embed pet and customer names, so renames re-encode the affected rows and deletes drop them
+ * (matching the inner joins of the SQL listing). Writes that bypass MainServer are not seen.
+ *
+ * {@link #reload} reads the table without holding the lock; sales and renames that arrive meanwhile
+ * are applied to the current rows and replayed onto the reloaded ones (a sale the read already
+ * returned is not added twice).
+ */
+public class SalesFeed {
+    /** An immutable view of the encoded rows: buf[offset .. offset + length), without the brackets. */
+    public static class Snapshot {
+        public final byte[] buf;
+        public final int offset;
+        public final int length;
+
+        Snapshot(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // chronological order, index-aligned
+    private final List<Sale> sales = new ArrayList<>();
+    private final List<byte[]> rows = new ArrayList<>();
+    private byte[] buf = new byte[0];
+    private int start;
+    private boolean loaded;
+    // non-null while reload reads the table: appended Sales and rename Runnables, in arrival order
+    private List<Object> missed;
+    // one reload at a time
+    private final Object reloading = new Object();
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Replaces the feed contents with the repository's current listing. */
+    public void reload(SaleRepository repo) throws SQLException {
+        synchronized (reloading) {
+            synchronized (this) {
+                missed = new ArrayList<>();
+            }
+            try {
+                List<Sale> newestFirst = repo.findAll();
+                synchronized (this) {
+                    List<Object> replay = missed;
+                    missed = null;
+                    Set<Integer> appended = new HashSet<>();
+                    for (Object op : replay) {
+                        if (op instanceof Sale) appended.add(((Sale) op).id);
+                    }
+                    Set<Integer> seen = new HashSet<>();
+                    for (Sale s : newestFirst) {
+                        if (appended.contains(s.id)) seen.add(s.id);
+                    }
+                    load(newestFirst);
+                    for (Object op : replay) {
+                        if (op instanceof Sale) {
+                            if (!seen.contains(((Sale) op).id)) append((Sale) op);
+                        } else {
+                            ((Runnable) op).run();
+                        }
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    missed = null;
+                }
+            }
+        }
+    }
+
+    // Replaces the feed contents with the given listing (newest first, as the repository returns it)
+    private void load(List<Sale> newestFirst) {
+        sales.clear();
+        rows.clear();
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            Sale s = newestFirst.get(i);
+            sales.add(s);
+            rows.add(encode(s));
+        }
+        relayout(0);
+        loaded = true;
+    }
+
+    /** Adds a just-committed sale at the head of the listing. */
+    public synchronized void append(Sale s) {
+        if (missed != null) missed.add(s);
+        if (!loaded) return;
+        byte[] row = encode(s);
+        boolean first = rows.isEmpty();
+        int needed = row.length + (first ? 0 : 1);
+        if (start < needed) relayout(needed);
+        if (!first) buf[--start] = ',';
+        start -= row.length;
+        System.arraycopy(row, 0, buf, start, row.length);
+        sales.add(s);
+        rows.add(row);
+    }
+
+    /** Re-encodes rows of the given pet after a rename; pass null for the pet to drop its rows (pet deleted). */
+    public synchronized void petChanged(int petId, Pet pet) {
+        if (missed != null) missed.add((Runnable) () -> petChanged(petId, pet));
+        if (!loaded) return;
+        boolean changed = false;
+        for (int i = sales.size() - 1; i >= 0; i--) {
+            Sale s = sales.get(i);
+            if (s.petId != petId) continue;
+            changed = true;
+            if (pet == null) {
+                sales.remove(i);
+                rows.remove(i);
+            } else {
+                Sale patched = new Sale(s.id, s.petId, s.customerId, s.quantity, s.totalPrice, s.saleDate,
+                        pet.name, pet.species, pet.breed, s.customerName, s.customerPhone);
+                sales.set(i, patched);
+                rows.set(i, encode(patched));
+            }
+        }
+        if (changed) relayout(0);
+    }
+
+    /** Re-encodes rows of the given customer after a change; pass null to drop its rows (customer deleted). */
+    public synchronized void customerChanged(int customerId, Customer customer) {
+        if (missed != null) missed.add((Runnable) () -> customerChanged(customerId, customer));
+        if (!loaded) return;
+        boolean changed = false;
+        for (int i = sales.size() - 1; i >= 0; i--) {
+            Sale s = sales.get(i);
+            if (s.customerId != customerId) continue;
+            changed = true;
+            if (customer == null) {
+                sales.remove(i);
+                rows.remove(i);
+            } else {
+                Sale patched = new Sale(s.id, s.petId, s.customerId, s.quantity, s.totalPrice, s.saleDate,
+                        s.petName, s.petSpecies, s.petBreed, customer.name, customer.phone);
+                sales.set(i, patched);
+                rows.set(i, encode(patched));
+            }
+        }
+        if (changed) relayout(0);
+    }
+
+    /** Drops the sales made before `millis` (their months were archived out of the live table). */
+    public synchronized void dropBefore(long millis) {
+        if (missed != null) missed.add((Runnable) () -> dropBefore(millis));
+        if (!loaded) return;
+        int n = 0;
+        // chronological, so the archived sales are a prefix
+        while (n < sales.size() && sales.get(n).saleDate.getTime() < millis) n++;
+        if (n == 0) return;
+        sales.subList(0, n).clear();
+        rows.subList(0, n).clear();
+        relayout(0);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(buf, start, buf.length - start);
+    }
+
+    public synchronized int size() {
+        return sales.size();
+    }
+
+    private static byte[] encode(Sale s) {
+        StringBuilder sb = new StringBuilder(160);
+        ShopJson.sale(sb, s, FieldSet.ALL_SALES);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes all rows newest-first into a fresh buffer with at least `spare` free bytes in front
+    private void relayout(int spare) {
+        int len = Math.max(0, rows.size() - 1);
+        for (byte[] r : rows) len += r.length;
+        int capacity = len + Math.max(spare, Math.max(4096, len / 2));
+        byte[] next = new byte[capacity];
+        int pos = capacity - len;
+        int newStart = pos;
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            byte[] r = rows.get(i);
+            System.arraycopy(r, 0, next, pos, r.length);
+            pos += r.length;
+            if (i > 0) next[pos++] = ',';
+        }
+        buf = next;
+        start = newStart;
+    }
+}
@@ -0,0 +1,204 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Versioned schema for the petshop database, applied by MainServer at startup.
+ *
+ * Migrations run in version order, each at most once; applied versions are recorded in
+ * `schema_migrations`. A named MySQL lock (GET_LOCK) serialises servers starting at the same time.
+ * Version 1 creates the tables if they do not exist yet, so databases set up from the old
+ * setup-mysql.sql script are adopted as they are. Later versions only add what the hot queries in
+ * {@link JdbcRepositories} need. Never edit an applied migration; add a new version instead.
+ *
+ * Sales deliberately have no foreign keys: deleting a pet or customer keeps its sales rows, which
+ * the joined listings then hide. (Partitioned tables, version 3, could not have them anyway.)
+ */
+public class SchemaMigrations {
+    private static final String LOCK_NAME = "petshop_schema_migrations";
+
+    /** One step of the schema history. */
+    interface Step {
+        void apply(Connection c) throws SQLException;
+    }
+
+    static class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        MIGRATIONS.add(new Migration(1, "Create pets, customers and sales", c -> {
+            execute(c, "CREATE TABLE IF NOT EXISTS pets ("
+                    + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "name VARCHAR(100) NOT NULL, "
+                    + "species VARCHAR(50) NOT NULL, "
+                    + "breed VARCHAR(100), "
+                    + "age INT NOT NULL DEFAULT 0, "
+                    + "price DECIMAL(10,2) NOT NULL DEFAULT 0, "
+                    + "quantity INT NOT NULL DEFAULT 0, "
+                    + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+            execute(c, "CREATE TABLE IF NOT EXISTS customers ("
+                    + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "name VARCHAR(100) NOT NULL, "
+                    + "email VARCHAR(100), "
+                    + "phone VARCHAR(20), "
+                    + "address VARCHAR(255), "
+                    + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+            execute(c, "CREATE TABLE IF NOT EXISTS sales ("
+                    + "id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "pet_id INT NOT NULL, "
+                    + "customer_id INT NOT NULL, "
+                    + "quantity INT NOT NULL, "
+                    + "total_price DECIMAL(10,2) NOT NULL, "
+                    + "sale_date TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        }));
+        MIGRATIONS.add(new Migration(2, "Indexes for listing order, joins and species updates", c -> {
+            // newest-first listings read the index backwards instead of sorting
+            createIndex(c, "pets", "idx_pets_created_at", "created_at");
+            createIndex(c, "customers", "idx_customers_created_at", "created_at");
+            // PATCH /api/pets price adjustments: UPDATE ... WHERE species = ?
+            createIndex(c, "pets", "idx_pets_species", "species");
+            // covers the analytics scan (every column it reads; id is implicit) and orders the listing
+            createIndex(c, "sales", "idx_sales_date_covering", "sale_date, pet_id, customer_id, quantity, total_price");
+            // per-pet / per-customer lookups of sales
+            createIndex(c, "sales", "idx_sales_pet", "pet_id");
+            createIndex(c, "sales", "idx_sales_customer", "customer_id");
+        }));
+        MIGRATIONS.add(new Migration(3, "Partition sales by month", c -> {
+            if (!SalesArchive.liveMonths(c).isEmpty()) return;
+            // every unique key of a partitioned table must include the partitioning column
+            execute(c, "ALTER TABLE sales DROP PRIMARY KEY, ADD PRIMARY KEY (id, sale_date)");
+            YearMonth first = YearMonth.now();
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT MIN(sale_date) FROM sales")) {
+                if (rs.next() && rs.getTimestamp(1) != null) first = YearMonth.from(rs.getTimestamp(1).toLocalDateTime());
+            }
+            execute(c, SalesArchive.partitionTableSql(first));
+        }));
+        MIGRATIONS.add(new Migration(4, "Change versions and tombstones for delta sync", c -> {
+            execute(c, "CREATE TABLE IF NOT EXISTS change_versions ("
+                    + "table_name VARCHAR(32) PRIMARY KEY, "
+                    + "version BIGINT NOT NULL)");
+            execute(c, "CREATE TABLE IF NOT EXISTS tombstones ("
+                    + "table_name VARCHAR(32) NOT NULL, "
+                    + "row_id INT NOT NULL, "
+                    + "version BIGINT NOT NULL, "
+                    + "PRIMARY KEY (table_name, row_id), "
+                    + "KEY idx_tombstones_version (table_name, version))");
+            for (String table : new String[] {"pets", "customers"}) {
+                addColumn(c, table, "version", "BIGINT NOT NULL DEFAULT 0");
+                createIndex(c, table, "idx_" + table + "_version", "version");
+                // existing rows are all "changed" at version 1, so since=0 still returns everything
+                execute(c, "UPDATE " + table + " SET version = 1 WHERE version = 0");
+                execute(c, "INSERT IGNORE INTO change_versions (table_name, version) VALUES ('" + table + "', 1)");
+            }
+        }));
+        MIGRATIONS.add(new Migration(5, "Idempotency keys for sales", c -> {
+            // clients retrying a sale (the Swing outbox) send the same key; the key row commits with the sale
+            execute(c, "CREATE TABLE IF NOT EXISTS sale_requests ("
+                    + "idempotency_key VARCHAR(64) PRIMARY KEY, "
+                    + "sale_id INT NOT NULL, "
+                    + "created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+        }));
+    }
+
+    /** Applies pending migrations and returns how many ran. */
+    public static int migrate() throws SQLException {
+        try (Connection c = DBConnection.getConnection()) {
+            try (PreparedStatement ps = c.prepareStatement("SELECT GET_LOCK(?, 60)")) {
+                ps.setString(1, LOCK_NAME);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next() || rs.getInt(1) != 1) throw new SQLException("Timed out waiting for the schema migration lock");
+                }
+            }
+            try {
+                execute(c, "CREATE TABLE IF NOT EXISTS schema_migrations ("
+                        + "version INT PRIMARY KEY, "
+                        + "description VARCHAR(255) NOT NULL, "
+                        + "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+                Set<Integer> applied = new HashSet<>();
+                try (Statement st = c.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT version FROM schema_migrations")) {
+                    while (rs.next()) applied.add(rs.getInt(1));
+                }
+                int count = 0;
+                for (Migration m : MIGRATIONS) {
+                    if (applied.contains(m.version)) continue;
+                    // MySQL DDL commits implicitly, so each step must be safe to re-run if recording it fails
+                    m.step.apply(c);
+                    try (PreparedStatement ps = c.prepareStatement("INSERT INTO schema_migrations (version, description) VALUES (?, ?)")) {
+                        ps.setInt(1, m.version);
+                        ps.setString(2, m.description);
+                        ps.executeUpdate();
+                    }
+                    System.out.println("Applied schema migration " + m.version + ": " + m.description);
+                    count++;
+                }
+                return count;
+            } finally {
+                try (PreparedStatement ps = c.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                    ps.setString(1, LOCK_NAME);
+                    ps.executeQuery().close();
+                }
+            }
+        }
+    }
+
+    /** Highest applied version, or 0 for an unmanaged database. */
+    public static int currentVersion() throws SQLException {
+        try (Connection c = DBConnection.getConnection();
+             Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_migrations")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void execute(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    // MySQL has no ADD COLUMN IF NOT EXISTS either
+    private static void addColumn(Connection c, String table, String column, String definition) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM information_schema.columns "
+                + "WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ? LIMIT 1")) {
+            ps.setString(1, table);
+            ps.setString(2, column);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return;
+            }
+        }
+        execute(c, "ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+    }
+
+    // MySQL has no CREATE INDEX IF NOT EXISTS
+    private static void createIndex(Connection c, String table, String name, String columns) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM information_schema.statistics "
+                + "WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ? LIMIT 1")) {
+            ps.setString(1, table);
+            ps.setString(2, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return;
+            }
+        }
+        execute(c, "CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
+    }
+}
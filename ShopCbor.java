@@ -0,0 +1,363 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Compact binary (CBOR, RFC 8949) encoding of the pet, customer and sales lists, served instead of
+ * JSON when a client sends `Accept: application/cbor`.
+ *
+ * A list is one CBOR array whose first element is the array of field names (the same names and
+ * order as the JSON, nested sales fields dotted: "pet.name"), followed by one array of values per
+ * row. Field names are therefore sent once per response rather than once per row. Values are
+ * integers, UTF-8 text, floats (float32 when exact, else float64), null, and sale dates as tag 1
+ * (epoch seconds). Any CBOR decoder can read the result; the decode* methods here are the matching
+ * Java client side.
+ */
+public class ShopCbor {
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private static final int UINT = 0, NEGINT = 1, TEXT = 3, ARRAY = 4, TAG = 6;
+    private static final int NULL = 0xf6, FLOAT32 = 0xfa, FLOAT64 = 0xfb;
+
+    // ---------- encoding ----------
+
+    public static byte[] pets(List<Pet> pets, FieldSet f) {
+        return pets(pets, f, id -> 0);
+    }
+
+    /** `heldByPet` gives the units on hold per pet id, for the "available" field. */
+    public static byte[] pets(List<Pet> pets, FieldSet f, IntUnaryOperator heldByPet) {
+        Out out = header(f, pets.size(), 24);
+        for (Pet p : pets) {
+            out.head(ARRAY, f.names().size());
+            if (f.has(FieldSet.PET_ID)) out.integer(p.id);
+            if (f.has(FieldSet.PET_NAME)) out.text(p.name);
+            if (f.has(FieldSet.PET_SPECIES)) out.text(p.species);
+            if (f.has(FieldSet.PET_BREED)) out.text(p.breed);
+            if (f.has(FieldSet.PET_AGE)) out.integer(p.age);
+            if (f.has(FieldSet.PET_PRICE)) out.number(p.price);
+            if (f.has(FieldSet.PET_STOCK)) out.integer(p.quantity);
+            if (f.has(FieldSet.PET_AVAILABLE)) out.integer(Math.max(0, p.quantity - heldByPet.applyAsInt(p.id)));
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] customers(List<Customer> customers, FieldSet f) {
+        Out out = header(f, customers.size(), 48);
+        for (Customer c : customers) {
+            out.head(ARRAY, f.names().size());
+            if (f.has(FieldSet.CUSTOMER_ID)) out.integer(c.id);
+            if (f.has(FieldSet.CUSTOMER_NAME)) out.text(c.name);
+            if (f.has(FieldSet.CUSTOMER_EMAIL)) out.text(c.email);
+            if (f.has(FieldSet.CUSTOMER_PHONE)) out.text(c.phone);
+            if (f.has(FieldSet.CUSTOMER_ADDRESS)) out.text(c.address);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] sales(List<Sale> sales, FieldSet f) {
+        Out out = header(f, sales.size(), 64);
+        for (Sale s : sales) {
+            out.head(ARRAY, f.names().size());
+            if (f.has(FieldSet.SALE_ID)) out.integer(s.id);
+            if (f.has(FieldSet.SALE_QUANTITY)) out.integer(s.quantity);
+            if (f.has(FieldSet.SALE_TOTAL)) out.number(s.totalPrice);
+            if (f.has(FieldSet.SALE_DATE)) out.date(s.saleDate);
+            if (f.has(FieldSet.SALE_PET_NAME)) out.text(s.petName);
+            if (f.has(FieldSet.SALE_PET_SPECIES)) out.text(s.petSpecies);
+            if (f.has(FieldSet.SALE_PET_BREED)) out.text(s.petBreed);
+            if (f.has(FieldSet.SALE_CUSTOMER_NAME)) out.text(s.customerName);
+            if (f.has(FieldSet.SALE_CUSTOMER_PHONE)) out.text(s.customerPhone);
+        }
+        return out.toByteArray();
+    }
+
+    private static Out header(FieldSet f, int rows, int bytesPerRow) {
+        Out out = new Out(rows * bytesPerRow + 64);
+        out.head(ARRAY, rows + 1L);
+        out.head(ARRAY, f.names().size());
+        for (String name : f.names()) out.text(name);
+        return out;
+    }
+
+    // Growable byte buffer with the CBOR primitives the lists need
+    private static class Out {
+        private byte[] buf;
+        private int len;
+
+        Out(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+
+        // Major type + argument in the shortest form
+        void head(int major, long arg) {
+            ensure(9);
+            int m = major << 5;
+            if (arg < 24) {
+                buf[len++] = (byte) (m | arg);
+            } else if (arg < 0x100) {
+                buf[len++] = (byte) (m | 24);
+                buf[len++] = (byte) arg;
+            } else if (arg < 0x10000) {
+                buf[len++] = (byte) (m | 25);
+                buf[len++] = (byte) (arg >> 8);
+                buf[len++] = (byte) arg;
+            } else if (arg < 0x100000000L) {
+                buf[len++] = (byte) (m | 26);
+                for (int shift = 24; shift >= 0; shift -= 8) buf[len++] = (byte) (arg >> shift);
+            } else {
+                buf[len++] = (byte) (m | 27);
+                for (int shift = 56; shift >= 0; shift -= 8) buf[len++] = (byte) (arg >> shift);
+            }
+        }
+
+        void integer(long v) {
+            if (v >= 0) head(UINT, v);
+            else head(NEGINT, -1 - v);
+        }
+
+        void number(double v) {
+            ensure(9);
+            float f = (float) v;
+            if (f == v) {
+                buf[len++] = (byte) FLOAT32;
+                int bits = Float.floatToIntBits(f);
+                for (int shift = 24; shift >= 0; shift -= 8) buf[len++] = (byte) (bits >> shift);
+            } else {
+                buf[len++] = (byte) FLOAT64;
+                long bits = Double.doubleToLongBits(v);
+                for (int shift = 56; shift >= 0; shift -= 8) buf[len++] = (byte) (bits >> shift);
+            }
+        }
+
+        void text(String s) {
+            if (s == null) {
+                ensure(1);
+                buf[len++] = (byte) NULL;
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            head(TEXT, b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        void date(Timestamp ts) {
+            if (ts == null) {
+                ensure(1);
+                buf[len++] = (byte) NULL;
+                return;
+            }
+            head(TAG, 1);
+            integer(Math.floorDiv(ts.getTime(), 1000L));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+
+    // ---------- decoding (client side) ----------
+
+    /** Decodes a pets list; fields left out of the response keep their zero / null value. */
+    public static List<Pet> decodePets(byte[] data) {
+        In in = new In(data);
+        int rows = in.listRows();
+        String[] names = in.names();
+        List<Pet> out = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            in.rowStart(names.length);
+            int id = 0, age = 0, quantity = 0;
+            String name = null, species = null, breed = null;
+            double price = 0;
+            for (String n : names) {
+                switch (n) {
+                    case "id": id = (int) in.integer(); break;
+                    case "name": name = in.text(); break;
+                    case "species": species = in.text(); break;
+                    case "breed": breed = in.text(); break;
+                    case "age": age = (int) in.integer(); break;
+                    case "price": price = in.number(); break;
+                    case "stock": quantity = (int) in.integer(); break;
+                    default: in.skip();
+                }
+            }
+            out.add(new Pet(id, name, species, breed, age, price, quantity));
+        }
+        return out;
+    }
+
+    public static List<Customer> decodeCustomers(byte[] data) {
+        In in = new In(data);
+        int rows = in.listRows();
+        String[] names = in.names();
+        List<Customer> out = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            in.rowStart(names.length);
+            int id = 0;
+            String name = null, email = null, phone = null, address = null;
+            for (String n : names) {
+                switch (n) {
+                    case "id": id = (int) in.integer(); break;
+                    case "name": name = in.text(); break;
+                    case "email": email = in.text(); break;
+                    case "phone": phone = in.text(); break;
+                    case "address": address = in.text(); break;
+                    default: in.skip();
+                }
+            }
+            out.add(new Customer(id, name, email, phone, address));
+        }
+        return out;
+    }
+
+    /** Decodes a sales list. Pet and customer ids are not part of the listing and come back as 0. */
+    public static List<Sale> decodeSales(byte[] data) {
+        In in = new In(data);
+        int rows = in.listRows();
+        String[] names = in.names();
+        List<Sale> out = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            in.rowStart(names.length);
+            int id = 0, quantity = 0;
+            double total = 0;
+            Timestamp date = null;
+            String petName = null, petSpecies = null, petBreed = null, customerName = null, customerPhone = null;
+            for (String n : names) {
+                switch (n) {
+                    case "id": id = (int) in.integer(); break;
+                    case "quantity": quantity = (int) in.integer(); break;
+                    case "total_price": total = in.number(); break;
+                    case "sale_date": date = in.date(); break;
+                    case "pet.name": petName = in.text(); break;
+                    case "pet.species": petSpecies = in.text(); break;
+                    case "pet.breed": petBreed = in.text(); break;
+                    case "customer.name": customerName = in.text(); break;
+                    case "customer.phone": customerPhone = in.text(); break;
+                    default: in.skip();
+                }
+            }
+            out.add(new Sale(id, 0, 0, quantity, total, date, petName, petSpecies, petBreed, customerName, customerPhone));
+        }
+        return out;
+    }
+
+    // Cursor over an encoded list; throws IllegalArgumentException on anything it did not write
+    private static class In {
+        private final byte[] buf;
+        private int pos;
+
+        In(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException(msg + " at offset " + pos);
+        }
+
+        private int u8() {
+            if (pos >= buf.length) throw error("Unexpected end of input");
+            return buf[pos++] & 0xff;
+        }
+
+        private long bigEndian(int bytes) {
+            long v = 0;
+            for (int i = 0; i < bytes; i++) v = (v << 8) | u8();
+            return v;
+        }
+
+        // Reads an initial byte of the expected major type and returns its argument
+        private long head(int major) {
+            int ib = u8();
+            if (ib >> 5 != major) throw error("Expected major type " + major + " but found " + (ib >> 5));
+            int info = ib & 0x1f;
+            if (info < 24) return info;
+            if (info <= 27) return bigEndian(1 << (info - 24));
+            throw error("Indefinite or reserved length");
+        }
+
+        private boolean nullNext() {
+            if (pos < buf.length && (buf[pos] & 0xff) == NULL) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        int listRows() {
+            long n = head(ARRAY);
+            if (n < 1) throw error("Missing header row");
+            return (int) (n - 1);
+        }
+
+        String[] names() {
+            String[] names = new String[(int) head(ARRAY)];
+            for (int i = 0; i < names.length; i++) names[i] = text();
+            return names;
+        }
+
+        void rowStart(int fields) {
+            if (head(ARRAY) != fields) throw error("Row length does not match header");
+        }
+
+        long integer() {
+            int major = pos < buf.length ? (buf[pos] & 0xff) >> 5 : -1;
+            if (major == NEGINT) return -1 - head(NEGINT);
+            return head(UINT);
+        }
+
+        String text() {
+            if (nullNext()) return null;
+            int n = (int) head(TEXT);
+            if (pos + n > buf.length) throw error("Text runs past end of input");
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        double number() {
+            int ib = u8();
+            if (ib == FLOAT32) return Float.intBitsToFloat((int) bigEndian(4));
+            if (ib == FLOAT64) return Double.longBitsToDouble(bigEndian(8));
+            pos--;
+            return integer();
+        }
+
+        Timestamp date() {
+            if (nullNext()) return null;
+            if (head(TAG) != 1) throw error("Expected epoch-seconds tag");
+            return new Timestamp(integer() * 1000L);
+        }
+
+        // Skips one value of a field this client does not know
+        void skip() {
+            int ib = pos < buf.length ? buf[pos] & 0xff : -1;
+            int major = ib >> 5;
+            if (ib == NULL) {
+                pos++;
+            } else if (ib == FLOAT32 || ib == FLOAT64) {
+                number();
+            } else if (major == UINT || major == NEGINT) {
+                integer();
+            } else if (major == TEXT) {
+                text();
+            } else if (major == TAG) {
+                head(TAG);
+                skip();
+            } else if (major == ARRAY) {
+                long n = head(ARRAY);
+                for (long i = 0; i < n; i++) skip();
+            } else {
+                throw error("Unsupported value");
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * JSON encoding of pets, customers and sales, restricted to the fields of a {@link FieldSet}.
+ *
+ * Field names and order match what the REST API has always returned; a projection only drops
+ * fields (and, for sales, whole nested pet / customer objects when none of their fields are asked for).
+ *
+ * The *Utf8 list encoders return the response bytes directly. Lists of at least PARALLEL_ROWS rows
+ * (PETSHOP_JSON_PARALLEL_ROWS, default 4000) are cut into chunks of CHUNK_ROWS that are encoded on the
+ * common fork/join pool and joined in order (single-CPU hosts always encode sequentially); below that
+ * the fork/join overhead costs more than it saves
+ * (`java CodecBenchmark [rows] [iterations]` prints the crossover on the host).
+ */
+public class ShopJson {
+    private static final DateTimeFormatter SQL_DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    static final int PARALLEL_ROWS = Integer.parseInt(System.getenv().getOrDefault("PETSHOP_JSON_PARALLEL_ROWS", "4000"));
+    private static final int CHUNK_ROWS = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Appends one row of a list. */
+    interface RowWriter<T> {
+        void write(StringBuilder sb, T row);
+    }
+
+    public static String escape(String s) {
+        if (s == null) return "";
+        // most values need no escaping: return them as they are
+        for (int i = 0; i < s.length(); i++) {
+            if (needsEscape(s.charAt(i))) return escape(new StringBuilder(s.length() + 8), s).toString();
+        }
+        return s;
+    }
+
+    /** Appends `s` (null as empty) escaped for a JSON string, in one pass and without temporary strings. */
+    public static StringBuilder escape(StringBuilder sb, String s) {
+        if (s == null) return sb;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!needsEscape(c)) continue;
+            sb.append(s, start, i).append('\\');
+            switch (c) {
+                case '"': sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '\n': sb.append('n'); break;
+                case '\r': sb.append('r'); break;
+                case '\t': sb.append('t'); break;
+                default: sb.append("u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        return sb.append(s, start, s.length());
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < 0x20 || c == '"' || c == '\\';
+    }
+
+    // Same shape MySQL returns for a DATETIME column read as a string
+    public static String formatDate(Timestamp ts) {
+        return ts == null ? null : ts.toLocalDateTime().format(SQL_DATETIME);
+    }
+
+    // Starts a new "name": entry, adding the separating comma unless this is the first field of the object
+    private static StringBuilder key(StringBuilder sb, String name) {
+        if (sb.charAt(sb.length() - 1) != '{') sb.append(',');
+        return sb.append('"').append(name).append("\":");
+    }
+
+    private static void str(StringBuilder sb, String name, String value) {
+        escape(key(sb, name).append('"'), value).append('"');
+    }
+
+    private static void money(StringBuilder sb, String name, double value) {
+        key(sb, name);
+        double scaled = value * 100;
+        long cents = Math.round(scaled);
+        // Rounding the scaled double only agrees with %.2f when it is clearly not a tie; prices in
+        // whole cents always take this path
+        if (value < 0 || cents > 1L << 50 || Math.abs(scaled - cents) > 0.25) {
+            sb.append(String.format("%.2f", value));
+            return;
+        }
+        sb.append(cents / 100).append('.');
+        long rest = cents % 100;
+        if (rest < 10) sb.append('0');
+        sb.append(rest);
+    }
+
+    private static final IntUnaryOperator NO_HOLDS = id -> 0;
+
+    public static void pet(StringBuilder sb, Pet p, FieldSet f) {
+        pet(sb, p, f, NO_HOLDS);
+    }
+
+    /** `heldByPet` gives the units on hold per pet id, for the "available" field. */
+    public static void pet(StringBuilder sb, Pet p, FieldSet f, IntUnaryOperator heldByPet) {
+        sb.append('{');
+        if (f.has(FieldSet.PET_ID)) key(sb, "id").append(p.id);
+        if (f.has(FieldSet.PET_NAME)) str(sb, "name", p.name);
+        if (f.has(FieldSet.PET_SPECIES)) str(sb, "species", p.species);
+        if (f.has(FieldSet.PET_BREED)) str(sb, "breed", p.breed);
+        if (f.has(FieldSet.PET_AGE)) key(sb, "age").append(p.age);
+        if (f.has(FieldSet.PET_PRICE)) money(sb, "price", p.price);
+        if (f.has(FieldSet.PET_STOCK)) key(sb, "stock").append(p.quantity);
+        if (f.has(FieldSet.PET_AVAILABLE)) key(sb, "available").append(Math.max(0, p.quantity - heldByPet.applyAsInt(p.id)));
+        sb.append('}');
+    }
+
+    public static void customer(StringBuilder sb, Customer c, FieldSet f) {
+        sb.append('{');
+        if (f.has(FieldSet.CUSTOMER_ID)) key(sb, "id").append(c.id);
+        if (f.has(FieldSet.CUSTOMER_NAME)) str(sb, "name", c.name);
+        if (f.has(FieldSet.CUSTOMER_EMAIL)) str(sb, "email", c.email);
+        if (f.has(FieldSet.CUSTOMER_PHONE)) str(sb, "phone", c.phone);
+        if (f.has(FieldSet.CUSTOMER_ADDRESS)) str(sb, "address", c.address);
+        sb.append('}');
+    }
+
+    public static void sale(StringBuilder sb, Sale s, FieldSet f) {
+        sb.append('{');
+        if (f.has(FieldSet.SALE_ID)) key(sb, "id").append(s.id);
+        if (f.has(FieldSet.SALE_QUANTITY)) key(sb, "quantity").append(s.quantity);
+        if (f.has(FieldSet.SALE_TOTAL)) money(sb, "total_price", s.totalPrice);
+        if (f.has(FieldSet.SALE_DATE)) str(sb, "sale_date", formatDate(s.saleDate));
+        if (f.hasAny(FieldSet.SALE_PET_NAME, FieldSet.SALE_PET_SPECIES, FieldSet.SALE_PET_BREED)) {
+            key(sb, "pet").append('{');
+            if (f.has(FieldSet.SALE_PET_NAME)) str(sb, "name", s.petName);
+            if (f.has(FieldSet.SALE_PET_SPECIES)) str(sb, "species", s.petSpecies);
+            if (f.has(FieldSet.SALE_PET_BREED)) str(sb, "breed", s.petBreed);
+            sb.append('}');
+        }
+        if (f.hasAny(FieldSet.SALE_CUSTOMER_NAME, FieldSet.SALE_CUSTOMER_PHONE)) {
+            key(sb, "customer").append('{');
+            if (f.has(FieldSet.SALE_CUSTOMER_NAME)) str(sb, "name", s.customerName);
+            if (f.has(FieldSet.SALE_CUSTOMER_PHONE)) str(sb, "phone", s.customerPhone);
+            sb.append('}');
+        }
+        sb.append('}');
+    }
+
+    public static String pets(List<Pet> pets, FieldSet f) {
+        return pets(pets, f, NO_HOLDS);
+    }
+
+    public static String pets(List<Pet> pets, FieldSet f, IntUnaryOperator heldByPet) {
+        StringBuilder sb = new StringBuilder(pets.size() * 96 + 2).append('[');
+        for (int i = 0; i < pets.size(); i++) {
+            if (i > 0) sb.append(',');
+            pet(sb, pets.get(i), f, heldByPet);
+        }
+        return sb.append(']').toString();
+    }
+
+    public static String customers(List<Customer> customers, FieldSet f) {
+        StringBuilder sb = new StringBuilder(customers.size() * 96 + 2).append('[');
+        for (int i = 0; i < customers.size(); i++) {
+            if (i > 0) sb.append(',');
+            customer(sb, customers.get(i), f);
+        }
+        return sb.append(']').toString();
+    }
+
+    public static String sales(List<Sale> sales, FieldSet f) {
+        StringBuilder sb = new StringBuilder(sales.size() * 160 + 2).append('[');
+        for (int i = 0; i < sales.size(); i++) {
+            if (i > 0) sb.append(',');
+            sale(sb, sales.get(i), f);
+        }
+        return sb.append(']').toString();
+    }
+
+    public static byte[] petsUtf8(List<Pet> pets, FieldSet f, IntUnaryOperator heldByPet) {
+        return arrayUtf8(pets, 96, (sb, p) -> pet(sb, p, f, heldByPet), parallel(pets.size()));
+    }
+
+    public static byte[] customersUtf8(List<Customer> customers, FieldSet f) {
+        return arrayUtf8(customers, 96, (sb, c) -> customer(sb, c, f), parallel(customers.size()));
+    }
+
+    public static byte[] salesUtf8(List<Sale> sales, FieldSet f) {
+        return arrayUtf8(sales, 160, (sb, s) -> sale(sb, s, f), parallel(sales.size()));
+    }
+
+    private static boolean parallel(int rows) {
+        return rows >= PARALLEL_ROWS && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    // A JSON array of the rows as UTF-8. `rowChars` is a guess at one row's length, to size the buffers.
+    static <T> byte[] arrayUtf8(List<T> rows, int rowChars, RowWriter<T> w, boolean parallel) {
+        int chunks = (rows.size() + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        if (!parallel || chunks < 2) {
+            StringBuilder sb = new StringBuilder(rows.size() * rowChars + 2).append('[');
+            appendRows(sb, rows, 0, rows.size(), w);
+            return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        }
+        byte[][] parts = new byte[chunks][];
+        ForkJoinPool.commonPool().invoke(new EncodeTask<>(rows, rowChars, w, parts, 0, chunks));
+        int length = 2;
+        for (byte[] part : parts) length += part.length;
+        byte[] out = new byte[length];
+        out[0] = '[';
+        int pos = 1;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, pos, part.length);
+            pos += part.length;
+        }
+        out[pos] = ']';
+        return out;
+    }
+
+    // Rows [from, to), each after a comma unless it is the first row of the list
+    private static <T> void appendRows(StringBuilder sb, List<T> rows, int from, int to, RowWriter<T> w) {
+        for (int i = from; i < to; i++) {
+            if (i > 0) sb.append(',');
+            w.write(sb, rows.get(i));
+        }
+    }
+
+    // Encodes chunks [lo, hi) into parts, splitting in halves like SalesAnalytics' scan
+    private static class EncodeTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> rows;
+        private final int rowChars;
+        private final RowWriter<T> w;
+        private final byte[][] parts;
+        private final int lo, hi;
+
+        EncodeTask(List<T> rows, int rowChars, RowWriter<T> w, byte[][] parts, int lo, int hi) {
+            this.rows = rows;
+            this.rowChars = rowChars;
+            this.w = w;
+            this.parts = parts;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                int from = lo * CHUNK_ROWS, to = Math.min(rows.size(), from + CHUNK_ROWS);
+                StringBuilder sb = new StringBuilder((to - from) * rowChars + 1);
+                appendRows(sb, rows, from, to, w);
+                parts[lo] = sb.toString().getBytes(StandardCharsets.UTF_8);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new EncodeTask<>(rows, rowChars, w, parts, lo, mid), new EncodeTask<>(rows, rowChars, w, parts, mid, hi));
+        }
+    }
+}
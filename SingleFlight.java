@@ -0,0 +1,45 @@
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical reads into one.
+ *
+ * The first caller for a key (the leader) runs the work; callers arriving with the same key while
+ * it is still running wait for the leader's result instead of running their own query. The key is
+ * forgotten as soon as the leader finishes, so nothing is cached: a request that arrives afterwards
+ * starts a new flight. Results are shared between callers and must not be modified.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public <T> T run(String key, DbExecutor.SqlCall<T> call) throws SQLException {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            collapsed.incrementAndGet();
+            return (T) DbExecutor.await(running);
+        }
+        leaders.incrementAndGet();
+        try {
+            T value = call.call();
+            mine.complete(value);
+            return value;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** JSON counters for the admin endpoint: flights run, requests that joined one, flights running now. */
+    public String snapshot() {
+        return String.format("{\"leaders\":%d,\"collapsed\":%d,\"in_flight\":%d}",
+                leaders.get(), collapsed.get(), inFlight.size());
+    }
+}
@@ -0,0 +1,230 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times every statement run on a {@link DBConnection} connection and keeps per-shape statistics.
+ *
+ * A statement's shape is its SQL with literals replaced by '?' (prepared statements already are
+ * shapes), so logs never contain bound values. Executions slower than PETSHOP_SLOW_QUERY_MS
+ * (default 200) are logged to stderr, and the first time a shape is slow its EXPLAIN plan is
+ * captured in the background on a separate connection to the same store, replaying the same
+ * parameters. At most one EXPLAIN runs every EXPLAIN_INTERVAL_MS. {@link #snapshot(int)} returns the
+ * slowest shapes for the admin endpoint.
+ */
+public class SlowQueryLog {
+    private static final long THRESHOLD_NANOS = Long.parseLong(getenvOrDefault("PETSHOP_SLOW_QUERY_MS", "200")) * 1_000_000L;
+    private static final long EXPLAIN_INTERVAL_MS = 5_000;
+    // Bound on distinct shapes tracked; statements beyond it are still timed and logged
+    private static final int MAX_SHAPES = 1000;
+
+    private static final ConcurrentHashMap<String, ShapeStats> SHAPES = new ConcurrentHashMap<>();
+    private static final AtomicLong NEXT_EXPLAIN_AT = new AtomicLong();
+    // EXPLAINs run here; while they do, their own statements are not recorded
+    private static final ThreadLocal<Boolean> SUPPRESSED = ThreadLocal.withInitial(() -> false);
+    private static final ThreadPoolExecutor EXPLAINER = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(16), r -> {
+                Thread t = new Thread(r, "slow-query-explain");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    static {
+        EXPLAINER.allowCoreThreadTimeOut(true);
+    }
+
+    private static String getenvOrDefault(String key, String def) {
+        String v = System.getenv(key);
+        return (v != null && !v.isEmpty()) ? v : def;
+    }
+
+    private static class ShapeStats {
+        final String shape;
+        final LongAdder count = new LongAdder();
+        final LongAdder slowCount = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicBoolean explainStarted = new AtomicBoolean();
+        volatile String plan;
+
+        ShapeStats(String shape) {
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * Wraps a statement created by `connection.method(args)` so its executions are timed.
+     * `type` is the interface the caller expects (Statement, PreparedStatement or CallableStatement).
+     */
+    static Statement wrap(Statement stmt, Class<?> type, Object[] createArgs) {
+        if (SUPPRESSED.get()) return stmt;
+        String preparedSql = stmt instanceof PreparedStatement && createArgs != null && createArgs[0] instanceof String
+                ? (String) createArgs[0] : null;
+        // parameter index -> the latest setter call for it, replayed for EXPLAIN. Keyed like the
+        // statement's own parameters, so it never holds more entries than the SQL has '?'s
+        Map<Integer, Object[]> params = new HashMap<>();
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (preparedSql != null && name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        params.put((Integer) args[0], new Object[]{method, args});
+                    } else if ("clearParameters".equals(name)) {
+                        params.clear();
+                    }
+                    if (!name.startsWith("execute")) return invoke(stmt, method, args);
+                    String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+                    long start = System.nanoTime();
+                    try {
+                        return invoke(stmt, method, args);
+                    } finally {
+                        record(sql, System.nanoTime() - start, sql == preparedSql ? params.values() : null);
+                    }
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // `params` is the statement's live setter map; it is only copied when the execution was slow
+    private static void record(String sql, long nanos, Collection<Object[]> params) {
+        if (sql == null) sql = "(batch)";
+        String shape = shape(sql);
+        ShapeStats stats = SHAPES.get(shape);
+        if (stats == null && SHAPES.size() < MAX_SHAPES) stats = SHAPES.computeIfAbsent(shape, ShapeStats::new);
+        if (stats != null) {
+            stats.count.increment();
+            stats.totalNanos.add(nanos);
+            stats.maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+        if (nanos < THRESHOLD_NANOS) return;
+        System.err.printf("[slow-query] %.1f ms: %s%n", nanos / 1e6, shape);
+        if (stats == null) return;
+        stats.slowCount.increment();
+        // plain statements are explained with their literals, prepared ones with the replayed parameters
+        if (!stats.explainStarted.get() && explainable(sql)) {
+            scheduleExplain(stats, sql, params == null ? null : new ArrayList<>(params), DBConnection.currentStore());
+        }
+    }
+
+    private static boolean explainable(String sql) {
+        String head = sql.trim().toUpperCase();
+        return head.startsWith("SELECT") || head.startsWith("UPDATE") || head.startsWith("DELETE")
+                || head.startsWith("INSERT") || head.startsWith("REPLACE");
+    }
+
+    // `store` is the one the slow statement ran on; the explain thread's own store is always the first
+    private static void scheduleExplain(ShapeStats stats, String sql, List<Object[]> params, String store) {
+        long now = System.currentTimeMillis();
+        long next = NEXT_EXPLAIN_AT.get();
+        if (now < next || !NEXT_EXPLAIN_AT.compareAndSet(next, now + EXPLAIN_INTERVAL_MS)) return;
+        if (!stats.explainStarted.compareAndSet(false, true)) return;
+        EXPLAINER.execute(() -> {
+            SUPPRESSED.set(true);
+            try (Connection c = DBConnection.getConnection(store);
+                 PreparedStatement ps = c.prepareStatement("EXPLAIN " + sql)) {
+                if (params != null) {
+                    for (Object[] p : params) ((Method) p[0]).invoke(ps, (Object[]) p[1]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    stats.plan = formatPlan(rs);
+                }
+            } catch (Exception e) {
+                stats.plan = "EXPLAIN failed: " + e.getMessage();
+            } finally {
+                SUPPRESSED.set(false);
+            }
+        });
+    }
+
+    // One "col=value, ..." entry per plan row, rows separated by " | "
+    private static String formatPlan(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        StringBuilder sb = new StringBuilder();
+        while (rs.next()) {
+            if (sb.length() > 0) sb.append(" | ");
+            boolean first = true;
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                String v = rs.getString(i);
+                if (v == null) continue;
+                if (!first) sb.append(", ");
+                sb.append(md.getColumnLabel(i)).append('=').append(v);
+                first = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    /** SQL with string and numeric literals replaced by '?' and whitespace collapsed. */
+    static String shape(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int n = sql.length();
+        for (int i = 0; i < n; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                // skip the quoted literal, honouring doubled quotes and backslash escapes
+                int j = i + 1;
+                while (j < n) {
+                    char d = sql.charAt(j);
+                    if (d == '\\') j += 2;
+                    else if (d == c && j + 1 < n && sql.charAt(j + 1) == c) j += 2;
+                    else if (d == c) break;
+                    else j++;
+                }
+                sb.append('?');
+                i = j;
+            } else if (Character.isDigit(c) && (sb.length() == 0 || !Character.isLetterOrDigit(sb.charAt(sb.length() - 1))
+                    && sb.charAt(sb.length() - 1) != '_')) {
+                while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) i++;
+                sb.append('?');
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /** JSON array of the `limit` shapes with the highest maximum latency. */
+    public static String snapshot(int limit) {
+        List<ShapeStats> all = new ArrayList<>(SHAPES.values());
+        all.sort(Comparator.comparingLong((ShapeStats s) -> s.maxNanos.get()).reversed());
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < Math.min(limit, all.size()); i++) {
+            ShapeStats s = all.get(i);
+            long count = s.count.sum();
+            if (i > 0) sb.append(',');
+            sb.append("{\"sql\":\"").append(ShopJson.escape(s.shape)).append('"')
+                    .append(String.format(",\"count\":%d,\"slow_count\":%d,\"max_ms\":%.2f,\"avg_ms\":%.2f,\"total_ms\":%.2f",
+                            count, s.slowCount.sum(), s.maxNanos.get() / 1e6,
+                            count == 0 ? 0 : s.totalNanos.sum() / 1e6 / count, s.totalNanos.sum() / 1e6))
+                    .append(",\"plan\":").append(s.plan == null ? "null" : "\"" + ShopJson.escape(s.plan) + "\"")
+                    .append('}');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,171 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived reservations of pet stock, so a terminal can set units aside between choosing a pet
+ * and paying without holding a row lock across that gap.
+ *
+ * A hold counts against a pet's available stock (stock minus active holds) until it is confirmed
+ * into a sale, released, or expires. Expiry is driven by a {@link TimingWheel} ticking every
+ * TICK_MILLIS, so the number of holds does not affect scheduling cost.
+ *
+ * Placing a hold reads the pet's current stock and compares it with the active holds under a lock
+ * striped by pet id; confirming keeps the hold counted until the sale has committed, so a concurrent
+ * hold either sees the old stock and this hold or the new stock without it. Holds live in this
+ * process only: instances behind a load balancer do not see each other's holds.
+ */
+public class StockHolds {
+    private static final long TICK_MILLIS = 100;
+    private static final int STRIPES = 64;
+
+    public static class Hold {
+        public final int id;
+        public final int petId;
+        public final int quantity;
+        public final long expiresAt;
+        TimingWheel.Timer<Hold> timer;
+        boolean confirming;
+
+        Hold(int id, int petId, int quantity, long expiresAt) {
+            this.id = id;
+            this.petId = petId;
+            this.quantity = quantity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** Current stock of a pet, or null when the pet does not exist. */
+    public interface StockSource {
+        Integer stock(int petId) throws SQLException;
+    }
+
+    /** The sale made from a confirmed hold. */
+    public interface HoldAction<T> {
+        T run(Hold hold) throws SQLException;
+    }
+
+    private final ConcurrentHashMap<Integer, Hold> holds = new ConcurrentHashMap<>();
+    // pet id -> units held; only changed under that pet's stripe
+    private final ConcurrentHashMap<Integer, Integer> heldByPet = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final TimingWheel<Hold> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stock-holds");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong placed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public StockHolds() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+        ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private Object stripe(int petId) {
+        return stripes[Math.floorMod(petId, STRIPES)];
+    }
+
+    /**
+     * Holds `quantity` units of a pet for `ttlMillis`. Returns null when fewer units are available.
+     *
+     * @throws SQLException "Pet not found" when the pet does not exist
+     */
+    public Hold place(int petId, int quantity, long ttlMillis, StockSource source) throws SQLException {
+        synchronized (stripe(petId)) {
+            Integer stock = source.stock(petId);
+            if (stock == null) throw new SQLException("Pet not found");
+            if (stock - held(petId) < quantity) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            Hold h = new Hold(nextId.incrementAndGet(), petId, quantity, System.currentTimeMillis() + ttlMillis);
+            holds.put(h.id, h);
+            heldByPet.merge(petId, quantity, Integer::sum);
+            h.timer = wheel.schedule(h, h.expiresAt);
+            placed.incrementAndGet();
+            return h;
+        }
+    }
+
+    /** Units of the pet currently held. */
+    public int held(int petId) {
+        Integer n = heldByPet.get(petId);
+        return n == null ? 0 : n;
+    }
+
+    public Hold get(int id) {
+        return holds.get(id);
+    }
+
+    /** Drops a hold before it expires. Returns false when it is unknown, expired or being confirmed. */
+    public boolean release(int id) {
+        Hold h = holds.get(id);
+        if (h == null) return false;
+        synchronized (stripe(h.petId)) {
+            if (h.confirming || !holds.remove(id, h)) return false;
+            wheel.cancel(h.timer);
+            unhold(h);
+        }
+        released.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Runs `sale` for a hold and removes the hold afterwards, whether or not the sale succeeds.
+     * Returns null (without running `sale`) when the hold is unknown, expired or already being confirmed.
+     */
+    public <T> T confirm(int id, HoldAction<T> sale) throws SQLException {
+        Hold h = holds.get(id);
+        if (h == null) return null;
+        synchronized (stripe(h.petId)) {
+            if (h.confirming || holds.get(id) != h) return null;
+            h.confirming = true;
+            wheel.cancel(h.timer);
+        }
+        try {
+            T result = sale.run(h);
+            confirmed.incrementAndGet();
+            return result;
+        } finally {
+            synchronized (stripe(h.petId)) {
+                holds.remove(id, h);
+                unhold(h);
+            }
+        }
+    }
+
+    private void unhold(Hold h) {
+        heldByPet.computeIfPresent(h.petId, (k, v) -> v - h.quantity == 0 ? null : v - h.quantity);
+    }
+
+    private void tick() {
+        List<Hold> due = new ArrayList<>();
+        wheel.advance(System.currentTimeMillis(), due);
+        for (Hold h : due) {
+            synchronized (stripe(h.petId)) {
+                if (h.confirming || !holds.remove(h.id, h)) continue;
+                unhold(h);
+            }
+            expired.incrementAndGet();
+        }
+    }
+
+    /** JSON counters for the admin endpoint. */
+    public String snapshot() {
+        return String.format("{\"active\":%d,\"scheduled\":%d,\"placed\":%d,\"rejected\":%d,\"confirmed\":%d,\"released\":%d,\"expired\":%d}",
+                holds.size(), wheel.size(), placed.get(), rejected.get(), confirmed.get(), released.get(), expired.get());
+    }
+}
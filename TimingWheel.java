@@ -0,0 +1,122 @@
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: O(1) schedule and cancel for large numbers of timers.
+ *
+ * Time is divided into ticks of `tickMillis`. Level 0 has one slot per tick for the next 256 ticks;
+ * each higher level has 256 slots that each span a whole turn of the level below (4 levels, so
+ * 2^32 ticks ahead). A timer goes into the lowest level whose range covers its deadline. When a
+ * lower level completes a turn, the matching slot of the level above is emptied and its timers are
+ * re-inserted closer to the bottom ("cascading"), so each timer moves at most LEVELS - 1 times.
+ *
+ * Not thread-safe on its own; every method is synchronized.
+ */
+public class TimingWheel<T> {
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+    /** A scheduled entry; pass it to {@link #cancel} to unschedule. */
+    public static final class Timer<T> {
+        public final T value;
+        long deadline; // in ticks
+        Timer<T> prev, next;
+        int level = -1, slot;
+
+        Timer(T value) {
+            this.value = value;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer<T>[][] heads;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.heads = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /** Schedules `value` to expire at `deadlineMillis` (rounded up to the next tick). */
+    public synchronized Timer<T> schedule(T value, long deadlineMillis) {
+        Timer<T> t = new Timer<>(value);
+        long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        t.deadline = Math.min(Math.max(tick, currentTick + 1), currentTick + MAX_DELTA);
+        insert(t);
+        size++;
+        return t;
+    }
+
+    /** Returns false when the timer already expired or was cancelled. */
+    public synchronized boolean cancel(Timer<T> t) {
+        if (t.level < 0) return false;
+        unlink(t);
+        size--;
+        return true;
+    }
+
+    /** Advances the wheel to `nowMillis`, adding the values of every timer that fired to `expired`. */
+    public synchronized void advance(long nowMillis, List<T> expired) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            if ((currentTick & MASK) == 0) cascade(1);
+            int slot = (int) (currentTick & MASK);
+            Timer<T> t = heads[0][slot];
+            heads[0][slot] = null;
+            while (t != null) {
+                Timer<T> next = t.next;
+                t.prev = t.next = null;
+                t.level = -1;
+                size--;
+                expired.add(t.value);
+                t = next;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Moves the timers of the current slot of `level` down; higher levels first when this one wrapped too
+    private void cascade(int level) {
+        if (level >= LEVELS) return;
+        int slot = (int) ((currentTick >>> (BITS * level)) & MASK);
+        if (slot == 0) cascade(level + 1);
+        Timer<T> t = heads[level][slot];
+        heads[level][slot] = null;
+        while (t != null) {
+            Timer<T> next = t.next;
+            t.prev = t.next = null;
+            insert(t);
+            t = next;
+        }
+    }
+
+    private void insert(Timer<T> t) {
+        long delta = t.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        // a timer due this very tick (only possible while cascading) goes in the slot about to fire
+        int slot = (int) ((Math.max(t.deadline, currentTick) >>> (BITS * level)) & MASK);
+        t.level = level;
+        t.slot = slot;
+        t.next = heads[level][slot];
+        if (t.next != null) t.next.prev = t;
+        heads[level][slot] = t;
+    }
+
+    private void unlink(Timer<T> t) {
+        if (t.prev != null) t.prev.next = t.next;
+        else heads[t.level][t.slot] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.level = -1;
+    }
+}
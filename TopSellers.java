@@ -0,0 +1,319 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Live "top N" boards of pets (by units sold) and customers (by revenue) for today, this week and
+ * this month, kept in bounded memory as sales commit instead of aggregating the sales join.
+ *
+ * Every board of every window is a Space-Saving summary of `capacity` counters next to a Count-Min
+ * sketch of the same stream. A sale of an item that has a counter adds to it; any other item takes
+ * over the smallest counter when its sketch estimate beats that counter, inheriting the difference as
+ * possible overestimate ("error"). An item with more than 1/capacity of the window's weight always has
+ * a counter, and count - error <= true weight <= count. Leaders are ranked by the smaller of their
+ * count and sketch estimate. Counters sit in an indexed min-heap, so a sale costs O(log capacity)
+ * whatever the number of pets or customers.
+ *
+ * Windows are calendar periods in the system time zone (weeks start on Monday) and start empty when
+ * the period turns over. {@link #bootstrap} fills new boards while the old ones keep answering, and
+ * replays sales recorded meanwhile into them before swapping them in. The figures are estimates; {@link SaleRepository#totalsBetween} re-counts
+ * the reported leaders exactly.
+ */
+public class TopSellers {
+    public enum Window { DAY, WEEK, MONTH }
+
+    public enum Board { PETS, CUSTOMERS }
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1024;
+
+    /** One leader of a board. Weights are units for pets and cents for customers. */
+    public static class Entry {
+        public final int id;
+        public final long estimate;
+        public final long minimum;
+        // minimum >= the next item's estimate: certainly among the true top N
+        public final boolean guaranteed;
+
+        Entry(int id, long estimate, long minimum, boolean guaranteed) {
+            this.id = id;
+            this.estimate = estimate;
+            this.minimum = minimum;
+            this.guaranteed = guaranteed;
+        }
+    }
+
+    private final int capacity;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // [window][board]; replaced whole by bootstrap
+    private volatile Summary[][] summaries;
+    // non-null while bootstrap reads the sales table: sales recorded meanwhile; guarded by this
+    private List<Sale> missed;
+    // one bootstrap at a time
+    private final Object rebuilding = new Object();
+
+    public TopSellers(int capacity) {
+        this.capacity = capacity;
+        this.summaries = newSummaries();
+    }
+
+    private Summary[][] newSummaries() {
+        Summary[][] out = new Summary[Window.values().length][Board.values().length];
+        for (Summary[] row : out) {
+            for (int b = 0; b < row.length; b++) row[b] = new Summary(capacity);
+        }
+        return out;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Rebuilds the boards from the sales of the current week and month; the old boards answer until it is done. */
+    public void bootstrap(SaleRepository sales) throws SQLException {
+        synchronized (rebuilding) {
+            synchronized (this) {
+                missed = new ArrayList<>();
+            }
+            try {
+                int today = today();
+                long from = startMillis(Math.min(periodStart(Window.WEEK, today), periodStart(Window.MONTH, today)));
+                List<Sale> recent = sales.findBetween(FieldSet.parse(FieldSet.SALES, "id,quantity,total_price,sale_date"), from, Long.MAX_VALUE);
+                Summary[][] rebuilt = newSummaries();
+                Set<Integer> seen = new HashSet<>();
+                // oldest first, as they were sold
+                for (int i = recent.size() - 1; i >= 0; i--) {
+                    Sale s = recent.get(i);
+                    seen.add(s.id);
+                    record(rebuilt, s.petId, s.customerId, s.quantity, s.totalPrice, s.saleDate.getTime());
+                }
+                synchronized (this) {
+                    for (Sale s : missed) {
+                        if (s.id > 0 && seen.contains(s.id)) continue;
+                        record(rebuilt, s.petId, s.customerId, s.quantity, s.totalPrice, s.saleDate.getTime());
+                    }
+                    summaries = rebuilt;
+                }
+            } finally {
+                synchronized (this) {
+                    missed = null;
+                }
+            }
+        }
+    }
+
+    /** Counts a committed sale; `saleId` tells it apart from the sales a concurrent bootstrap reads. */
+    public synchronized void record(int saleId, int petId, int customerId, int quantity, double totalPrice, long saleMillis) {
+        if (missed != null) {
+            missed.add(new Sale(saleId, petId, customerId, quantity, totalPrice, new Timestamp(saleMillis),
+                    null, null, null, null, null));
+        }
+        record(summaries, petId, customerId, quantity, totalPrice, saleMillis);
+    }
+
+    private void record(Summary[][] into, int petId, int customerId, int quantity, double totalPrice, long saleMillis) {
+        int day = epochDay(saleMillis);
+        for (Window w : Window.values()) {
+            int period = periodStart(w, day);
+            if (petId > 0) into[w.ordinal()][Board.PETS.ordinal()].add(period, petId, quantity);
+            if (customerId > 0) into[w.ordinal()][Board.CUSTOMERS.ordinal()].add(period, customerId, Math.round(totalPrice * 100));
+        }
+    }
+
+    /** The current leaders of a board, highest first; at most min(n, capacity). */
+    public List<Entry> top(Window w, Board b, int n) {
+        return summaries[w.ordinal()][b.ordinal()].top(periodStart(w, today()), Math.min(n, capacity));
+    }
+
+    /** Start of the window's current period, epoch millis. */
+    public long fromMillis(Window w) {
+        return startMillis(periodStart(w, today()));
+    }
+
+    /** End (exclusive) of the window's current period, epoch millis. */
+    public long toMillis(Window w) {
+        LocalDate start = LocalDate.ofEpochDay(periodStart(w, today()));
+        LocalDate end = w == Window.DAY ? start.plusDays(1) : w == Window.WEEK ? start.plusWeeks(1) : start.plusMonths(1);
+        return startMillis((int) end.toEpochDay());
+    }
+
+    private int today() {
+        return epochDay(System.currentTimeMillis());
+    }
+
+    private int epochDay(long millis) {
+        return (int) Instant.ofEpochMilli(millis).atZone(zone).toLocalDate().toEpochDay();
+    }
+
+    private long startMillis(int epochDay) {
+        return LocalDate.ofEpochDay(epochDay).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // Epoch day on which the period containing `day` starts
+    private static int periodStart(Window w, int day) {
+        LocalDate d = LocalDate.ofEpochDay(day);
+        switch (w) {
+            case WEEK: return (int) d.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).toEpochDay();
+            case MONTH: return (int) d.withDayOfMonth(1).toEpochDay();
+            default: return day;
+        }
+    }
+
+    /** JSON counters for the admin endpoint. */
+    public String snapshot() {
+        Summary[][] summaries = this.summaries;
+        StringBuilder sb = new StringBuilder("{\"capacity\":").append(capacity);
+        for (Window w : Window.values()) {
+            for (Board b : Board.values()) {
+                Summary s = summaries[w.ordinal()][b.ordinal()];
+                synchronized (s) {
+                    sb.append(",\"").append(w.name().toLowerCase()).append('_').append(b.name().toLowerCase())
+                            .append("\":{\"counters\":").append(s.size).append(",\"total\":").append(s.total).append('}');
+                }
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    // ---------- one Space-Saving summary ----------
+    private static class Summary {
+        private final int capacity;
+        // min-heap on counts; slot maps an id to its heap index
+        private final int[] ids;
+        private final long[] counts;
+        private final long[] errors;
+        private final IntIntMap slot;
+        private final long[][] sketch = new long[SKETCH_DEPTH][SKETCH_WIDTH];
+        private int size;
+        private long total;
+        // epoch day the counted period starts on
+        private int period = Integer.MIN_VALUE;
+
+        Summary(int capacity) {
+            this.capacity = capacity;
+            this.ids = new int[capacity];
+            this.counts = new long[capacity];
+            this.errors = new long[capacity];
+            this.slot = new IntIntMap(capacity);
+        }
+
+        synchronized void reset(int newPeriod) {
+            period = newPeriod;
+            size = 0;
+            total = 0;
+            slot.clear();
+            for (long[] row : sketch) Arrays.fill(row, 0);
+        }
+
+        synchronized void add(int salePeriod, int id, long weight) {
+            if (salePeriod < period || weight <= 0) return; // a sale from a period already over
+            if (salePeriod > period) reset(salePeriod);
+            total += weight;
+            for (int d = 0; d < SKETCH_DEPTH; d++) sketch[d][bucket(id, d)] += weight;
+
+            int i = slot.get(id);
+            if (i != IntIntMap.MISSING) {
+                counts[i] += weight;
+                siftDown(i);
+                return;
+            }
+            if (size < capacity) {
+                i = size++;
+                set(i, id, weight, 0);
+                siftUp(i);
+                return;
+            }
+            // Space-Saving would always take over the smallest counter. An item whose sketch estimate
+            // does not beat that counter cannot outweigh it, so it stays untracked and the invariant
+            // "untracked items weigh at most the smallest count" still holds.
+            long estimate = sketchEstimate(id);
+            if (estimate <= counts[0]) return;
+            long count = Math.min(counts[0] + weight, estimate);
+            slot.remove(ids[0]);
+            set(0, id, count, count - weight);
+            siftDown(0);
+        }
+
+        synchronized List<Entry> top(int currentPeriod, int n) {
+            List<Entry> out = new ArrayList<>();
+            if (period != currentPeriod || size == 0) return out;
+            long[] estimates = new long[size];
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                estimates[i] = Math.min(counts[i], sketchEstimate(ids[i]));
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(estimates[b], estimates[a]));
+            int k = Math.min(n, size);
+            // nothing outside the first k can weigh more than this
+            long next = Math.max(k < size ? estimates[order[k]] : 0, size == capacity ? counts[0] : 0);
+            for (int r = 0; r < k; r++) {
+                int i = order[r];
+                long minimum = counts[i] - errors[i];
+                out.add(new Entry(ids[i], estimates[i], minimum, minimum >= next));
+            }
+            return out;
+        }
+
+        private void set(int i, int id, long count, long error) {
+            ids[i] = id;
+            counts[i] = count;
+            errors[i] = error;
+            slot.put(id, i);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && counts[(i - 1) / 2] > counts[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        // counts only grow, so a changed counter can only move down the heap
+        private void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1, r = l + 1, m = i;
+                if (l < size && counts[l] < counts[m]) m = l;
+                if (r < size && counts[r] < counts[m]) m = r;
+                if (m == i) return;
+                swap(i, m);
+                i = m;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int id = ids[a];
+            long count = counts[a], error = errors[a];
+            ids[a] = ids[b];
+            counts[a] = counts[b];
+            errors[a] = errors[b];
+            ids[b] = id;
+            counts[b] = count;
+            errors[b] = error;
+            slot.put(ids[a], a);
+            slot.put(ids[b], b);
+        }
+
+        private long sketchEstimate(int id) {
+            long min = Long.MAX_VALUE;
+            for (int d = 0; d < SKETCH_DEPTH; d++) min = Math.min(min, sketch[d][bucket(id, d)]);
+            return min;
+        }
+
+        private static int bucket(int id, int row) {
+            int h = (id + row * 0x632BE5AB) * 0x9E3779B9;
+            h ^= h >>> 15;
+            h *= 0x85EBCA6B;
+            return (h ^ (h >>> 13)) & (SKETCH_WIDTH - 1);
+        }
+    }
+}
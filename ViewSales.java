@@ -51,32 +51,18 @@ public class ViewSales extends JFrame {
         tableModel.setRowCount(0);
 
         try {
-            Connection conn = DBConnection.getConnection();
-            String sql = "SELECT s.id, p.name AS pet_name, c.name AS customer_name, " +
-                    "s.quantity, s.total_price, s.sale_date " +
-                    "FROM sales s " +
-                    "JOIN pets p ON s.pet_id = p.id " +
-                    "JOIN customers c ON s.customer_id = c.id " +
-                    "ORDER BY s.sale_date DESC";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-
-            while (rs.next()) {
+            for (Sale sale : Repositories.sales().findAll()) {
                 Object[] row = {
-                        rs.getInt("id"),
-                        rs.getString("pet_name"),
-                        rs.getString("customer_name"),
-                        rs.getInt("quantity"),
-                        String.format("$%.2f", rs.getDouble("total_price")),
-                        rs.getTimestamp("sale_date").toString()
+                        sale.id,
+                        sale.petName,
+                        sale.customerName,
+                        sale.quantity,
+                        String.format("$%.2f", sale.totalPrice),
+                        sale.saleDate.toString()
                 };
                 tableModel.addRow(row);
             }
 
-            rs.close();
-            stmt.close();
-            conn.close();
-
         } catch (SQLException ex) {
             JOptionPane.showMessageDialog(this, "Database error: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }